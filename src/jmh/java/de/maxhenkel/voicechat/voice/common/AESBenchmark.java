@@ -0,0 +1,101 @@
+package de.maxhenkel.voicechat.voice.common;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the previous allocating AES implementation with the pooled one
+ * Run with {@code ./gradlew jmh -PjmhIncludes=AESBenchmark}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AESBenchmark {
+
+    @Param({"1024"})
+    private int payloadSize;
+
+    private UUID secret;
+    private SecretKeySpec key;
+    private byte[] data;
+    private byte[] encrypted;
+    private ByteBuffer dataBuffer;
+    private ByteBuffer encryptedBuffer;
+    private ByteBuffer outBuffer;
+
+    @Setup
+    public void setup() throws Exception {
+        secret = UUID.randomUUID();
+        key = AES.createKeySpec(secret);
+        data = new byte[payloadSize];
+        new SecureRandom().nextBytes(data);
+        dataBuffer = ByteBuffer.wrap(data);
+        outBuffer = ByteBuffer.allocate(AES.getEncryptedSize(payloadSize));
+        encrypted = LegacyAES.encrypt(secret, data);
+        encryptedBuffer = ByteBuffer.wrap(encrypted);
+    }
+
+    @Benchmark
+    public byte[] legacyEncrypt() throws Exception {
+        return LegacyAES.encrypt(secret, data);
+    }
+
+    @Benchmark
+    public int pooledEncrypt() throws Exception {
+        dataBuffer.clear();
+        outBuffer.clear();
+        return AES.encrypt(key, dataBuffer, outBuffer);
+    }
+
+    @Benchmark
+    public byte[] legacyDecrypt() throws Exception {
+        return LegacyAES.decrypt(secret, encrypted);
+    }
+
+    @Benchmark
+    public int pooledDecrypt() throws Exception {
+        encryptedBuffer.clear();
+        outBuffer.clear();
+        return AES.decrypt(key, encryptedBuffer, outBuffer);
+    }
+
+    /**
+     * The implementation before cipher instances and keys were reused
+     */
+    private static class LegacyAES {
+        private static final SecureRandom RANDOM = new SecureRandom();
+        private static final String CIPHER = "AES/CBC/PKCS5Padding";
+
+        public static byte[] encrypt(UUID secret, byte[] data) throws Exception {
+            byte[] iv = new byte[16];
+            RANDOM.nextBytes(iv);
+            IvParameterSpec ivSpec = new IvParameterSpec(iv);
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(AES.getBytesFromUUID(secret), "AES"), ivSpec);
+            byte[] enc = cipher.doFinal(data);
+            byte[] payload = new byte[iv.length + enc.length];
+            System.arraycopy(iv, 0, payload, 0, iv.length);
+            System.arraycopy(enc, 0, payload, iv.length, enc.length);
+            return payload;
+        }
+
+        public static byte[] decrypt(UUID secret, byte[] payload) throws Exception {
+            byte[] iv = new byte[16];
+            System.arraycopy(payload, 0, iv, 0, iv.length);
+            byte[] data = new byte[payload.length - iv.length];
+            System.arraycopy(payload, iv.length, data, 0, data.length);
+            IvParameterSpec ivSpec = new IvParameterSpec(iv);
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(AES.getBytesFromUUID(secret), "AES"), ivSpec);
+            return cipher.doFinal(data);
+        }
+    }
+
+}
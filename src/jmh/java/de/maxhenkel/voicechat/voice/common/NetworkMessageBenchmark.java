@@ -0,0 +1,73 @@
+package de.maxhenkel.voicechat.voice.common;
+
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.FriendlyByteBuf;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the allocations of the previous packet decoding with the pooled one, when forwarding a microphone packet as a sound packet
+ * The encryption is not part of this benchmark, see {@link AESBenchmark}
+ * Run with {@code ./gradlew jmh -PjmhIncludes=NetworkMessageBenchmark} (Add {@code -prof gc} to see the allocation rate, the pooled path should report 0 B/op)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NetworkMessageBenchmark {
+
+    @Param({"80"})
+    private int frameSize;
+
+    private SocketAddress address;
+    private UUID sender;
+    private ByteBuffer plaintext;
+    private int plaintextLength;
+
+    @Setup
+    public void setup() {
+        byte[] frame = new byte[frameSize];
+        new Random(0L).nextBytes(frame);
+        address = new InetSocketAddress("127.0.0.1", 24454);
+        sender = UUID.randomUUID();
+        FriendlyByteBuf body = new NetworkMessage(new MicPacket(frame, 1_000L, -30D)).getBody(NetworkMessage.COMPACT_PROTOCOL);
+        plaintextLength = body.readableBytes();
+        plaintext = ByteBuffer.allocate(NetworkMessage.MAX_PACKET_SIZE);
+        body.getBytes(body.readerIndex(), plaintext.array(), 0, plaintextLength);
+    }
+
+    /**
+     * The previous path: Reflective instantiation, a new buffer wrapper, a copy of the audio data and a new body per message
+     */
+    @Benchmark
+    public byte[] legacyForward() throws Exception {
+        plaintext.position(0).limit(plaintextLength);
+        FriendlyByteBuf buffer = new FriendlyByteBuf(Unpooled.wrappedBuffer(plaintext));
+        buffer.readByte();
+        MicPacket micPacket = MicPacket.class.getDeclaredConstructor().newInstance().fromBytes(buffer, NetworkMessage.COMPACT_PROTOCOL);
+        NetworkMessage soundMessage = new NetworkMessage(new SoundPacket(sender, 1, micPacket));
+        FriendlyByteBuf body = new FriendlyByteBuf(Unpooled.buffer());
+        body.writeByte(1);
+        soundMessage.getPacket().toBytes(body, NetworkMessage.COMPACT_PROTOCOL);
+        byte[] bytes = new byte[body.readableBytes()];
+        body.readBytes(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public int pooledForward() throws Exception {
+        plaintext.position(0).limit(plaintextLength);
+        NetworkMessage message = NetworkMessage.readPacket(address, 0L, NetworkMessage.COMPACT_PROTOCOL, plaintext);
+        NetworkMessage soundMessage = NetworkMessage.obtain(PacketRegistry.create(SoundPacket.class).set(sender, 1, (MicPacket) message.getPacket()));
+        int size = soundMessage.getBody(NetworkMessage.COMPACT_PROTOCOL).readableBytes();
+        soundMessage.recycle();
+        message.recycle();
+        return size;
+    }
+
+}
@@ -0,0 +1,81 @@
+package de.maxhenkel.voicechat.voice.common;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per frame cost of the allocating byte based audio processing with the sample based one
+ * Run with {@code ./gradlew jmh -PjmhIncludes=UtilsBenchmark} (Add {@code -prof gc} to see the allocation rate)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UtilsBenchmark {
+
+    @Param({"960"})
+    private int frameSamples;
+
+    private byte[] microphoneData;
+    private byte[] decodedData;
+    private byte[] readBuffer;
+    private short[] samples;
+    private short[] stereoSamples;
+    private byte[] stereoData;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0L);
+        microphoneData = new byte[frameSamples * 2];
+        for (int i = 0; i < frameSamples; i++) {
+            short sample = (short) (Math.sin(i / 10D) * 8000D + random.nextGaussian() * 500D);
+            microphoneData[i * 2] = (byte) sample;
+            microphoneData[i * 2 + 1] = (byte) (sample >> 8);
+        }
+        decodedData = microphoneData.clone();
+        readBuffer = new byte[microphoneData.length];
+        samples = Utils.bytesToShorts(microphoneData, new short[frameSamples]);
+        stereoSamples = new short[frameSamples * 2];
+        stereoData = new byte[frameSamples * 4];
+    }
+
+    /**
+     * The previous microphone path: Allocating a buffer per frame and processing the raw bytes
+     */
+    @Benchmark
+    public int legacyMicrophoneFrame() {
+        byte[] buff = new byte[microphoneData.length];
+        System.arraycopy(microphoneData, 0, buff, 0, buff.length);
+        Utils.adjustVolumeMono(buff, 1.5F);
+        return Utils.getActivationOffset(Utils.bytesToShorts(buff, new short[buff.length / 2]), -50D);
+    }
+
+    @Benchmark
+    public int microphoneFrame() {
+        System.arraycopy(microphoneData, 0, readBuffer, 0, readBuffer.length);
+        Utils.bytesToShorts(readBuffer, samples);
+        Utils.adjustVolumeMono(samples, 1.5F);
+        return Utils.getActivationOffset(samples, -50D);
+    }
+
+    /**
+     * The previous playback path: Converting the decoded bytes to a newly allocated stereo frame
+     */
+    @Benchmark
+    public byte[] legacyPlaybackFrame() {
+        return Utils.convertToStereo(decodedData, 0.8F, 0.4F);
+    }
+
+    @Benchmark
+    public byte[] playbackFrame() {
+        Utils.convertToStereo(samples, frameSamples, stereoSamples, 0.8F, 0.4F);
+        return Utils.shortsToBytes(stereoSamples, frameSamples * 2, stereoData);
+    }
+
+    @Benchmark
+    public double audioLevel() {
+        return Utils.getHighestAudioLevel(samples);
+    }
+
+}
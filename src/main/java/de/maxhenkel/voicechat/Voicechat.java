@@ -3,6 +3,8 @@ package de.maxhenkel.voicechat;
 import de.maxhenkel.voicechat.command.VoicechatCommands;
 import de.maxhenkel.voicechat.config.ConfigBuilder;
 import de.maxhenkel.voicechat.config.ServerConfig;
+import de.maxhenkel.voicechat.voice.client.AudioChannelConfig;
+import de.maxhenkel.voicechat.voice.common.NetworkMessage;
 import de.maxhenkel.voicechat.voice.server.ServerVoiceEvents;
 import io.netty.buffer.Unpooled;
 import net.fabricmc.api.ModInitializer;
@@ -69,6 +71,14 @@ public class Voicechat implements ModInitializer {
             if (clientCompatibilityVersion != Voicechat.COMPATIBILITY_VERSION) {
                 Voicechat.LOGGER.warn("Client {} has incompatible voice chat version (server={}, client={})", handler.connection.getRemoteAddress(), Voicechat.COMPATIBILITY_VERSION, clientCompatibilityVersion);
                 handler.disconnect(new TranslatableComponent("message.voicechat.incompatible_version"));
+                return;
+            }
+
+            // Older clients don't send their protocol version and always use 20 ms frames
+            int clientProtocolVersion = buf.isReadable() ? buf.readInt() : NetworkMessage.LEGACY_PROTOCOL;
+            if (clientProtocolVersion < NetworkMessage.AEAD_PROTOCOL && SERVER_CONFIG != null && AudioChannelConfig.getSupportedFrameDuration(SERVER_CONFIG.frameDuration.get()) != AudioChannelConfig.LEGACY_FRAME_DURATION) {
+                Voicechat.LOGGER.warn("Client {} does not support the frame duration of the server", handler.connection.getRemoteAddress());
+                handler.disconnect(new TranslatableComponent("message.voicechat.unsupported_frame_duration"));
             }
         });
 
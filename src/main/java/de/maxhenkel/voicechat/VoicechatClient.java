@@ -7,6 +7,7 @@ import de.maxhenkel.voicechat.config.PlayerVolumeConfig;
 import de.maxhenkel.voicechat.resourcepacks.IPackRepository;
 import de.maxhenkel.voicechat.resourcepacks.VoiceChatResourcePack;
 import de.maxhenkel.voicechat.voice.client.ClientVoiceEvents;
+import de.maxhenkel.voicechat.voice.common.NetworkMessage;
 import io.netty.buffer.Unpooled;
 import net.fabricmc.api.ClientModInitializer;
 import net.fabricmc.api.EnvType;
@@ -53,6 +54,8 @@ public class VoicechatClient implements ClientModInitializer {
 
             FriendlyByteBuf buffer = new FriendlyByteBuf(Unpooled.buffer());
             buffer.writeInt(Voicechat.COMPATIBILITY_VERSION);
+            // Older servers only read the compatibility version
+            buffer.writeInt(NetworkMessage.PROTOCOL_VERSION);
             return CompletableFuture.completedFuture(buffer);
         });
 
@@ -3,12 +3,17 @@ package de.maxhenkel.voicechat.command;
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.builder.LiteralArgumentBuilder;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
 import de.maxhenkel.voicechat.Voicechat;
 import de.maxhenkel.voicechat.net.NetManager;
 import de.maxhenkel.voicechat.net.SetGroupPacket;
 import de.maxhenkel.voicechat.voice.common.PingPacket;
-import de.maxhenkel.voicechat.voice.common.PlayerState;
 import de.maxhenkel.voicechat.voice.server.ClientConnection;
+import de.maxhenkel.voicechat.voice.server.Group;
+import de.maxhenkel.voicechat.voice.server.GroupManager;
+import de.maxhenkel.voicechat.voice.server.OutboundQueue;
+import de.maxhenkel.voicechat.voice.server.PacketLanes;
 import de.maxhenkel.voicechat.voice.server.PingManager;
 import de.maxhenkel.voicechat.voice.server.Server;
 import net.minecraft.ChatFormatting;
@@ -19,6 +24,8 @@ import net.minecraft.commands.arguments.EntityArgument;
 import net.minecraft.network.chat.*;
 import net.minecraft.server.level.ServerPlayer;
 
+import javax.annotation.Nullable;
+
 public class VoicechatCommands {
 
     public static void register(CommandDispatcher<CommandSourceStack> dispatcher, boolean dedicated) {
@@ -59,6 +66,41 @@ public class VoicechatCommands {
             return 1;
         })));
 
+        literalBuilder.then(Commands.literal("stats").requires((commandSource) -> commandSource.hasPermission(2)).executes((commandSource) -> {
+            Server server = Voicechat.SERVER.getServer();
+            if (server == null) {
+                commandSource.getSource().sendSuccess(new TranslatableComponent("message.voicechat.voice_chat_unavailable"), false);
+                return 1;
+            }
+            for (int i = 0; i < server.getWorkerCount(); i++) {
+                OutboundQueue queue = server.getOutboundQueue(i);
+                PacketLanes lanes = server.getPacketLanes(i);
+                commandSource.getSource().sendSuccess(new TranslatableComponent("message.voicechat.worker_stats",
+                        i,
+                        lanes.getControlSize(),
+                        lanes.getMedia().size(),
+                        queue.getDepth(),
+                        queue.getCapacity(),
+                        String.format("%.1f", queue.getAverageFlushSize()),
+                        queue.getMaxFlushSize()
+                ), false);
+            }
+            for (ClientConnection connection : server.getConnections().values()) {
+                if (connection.getDroppedPackets() <= 0L && connection.getSuppressedPackets() <= 0L) {
+                    continue;
+                }
+                ServerPlayer player = commandSource.getSource().getServer().getPlayerList().getPlayer(connection.getPlayerUUID());
+                Component name = player == null ? new TextComponent(connection.getPlayerUUID().toString()) : player.getDisplayName();
+                if (connection.getDroppedPackets() > 0L) {
+                    commandSource.getSource().sendSuccess(new TranslatableComponent("message.voicechat.dropped_packets", name, connection.getDroppedPackets()), false);
+                }
+                if (connection.getSuppressedPackets() > 0L) {
+                    commandSource.getSource().sendSuccess(new TranslatableComponent("message.voicechat.suppressed_packets", name, connection.getSuppressedPackets(), connection.getSuppressedBytes()), false);
+                }
+            }
+            return 1;
+        }));
+
         literalBuilder.then(Commands.literal("invite").then(Commands.argument("target", EntityArgument.player()).executes((commandSource) -> {
             ServerPlayer source = commandSource.getSource().getPlayerOrException();
 
@@ -68,20 +110,21 @@ public class VoicechatCommands {
                 return 1;
             }
 
-            PlayerState state = server.getPlayerStateManager().getState(source.getUUID());
+            Group group = server.getGroupManager().getPlayerGroup(source.getUUID());
 
-            if (state == null || !state.hasGroup()) {
+            if (group == null) {
                 commandSource.getSource().sendSuccess(new TranslatableComponent("message.voicechat.not_in_group"), false);
                 return 1;
             }
 
             ServerPlayer player = EntityArgument.getPlayer(commandSource, "target");
+            server.getGroupManager().invite(group, player.getUUID());
 
             player.sendMessage(new TranslatableComponent("message.voicechat.invite",
                     source.getDisplayName(),
-                    new TextComponent(state.getGroup()).withStyle(ChatFormatting.GRAY),
+                    new TextComponent(group.getName()).withStyle(ChatFormatting.GRAY),
                     ComponentUtils.wrapInSquareBrackets(new TranslatableComponent("message.voicechat.accept_invite").withStyle(style -> style
-                            .withClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/voicechat join " + state.getGroup()))
+                            .withClickEvent(new ClickEvent(ClickEvent.Action.RUN_COMMAND, "/voicechat join " + group.getName()))
                             .withHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_TEXT, new TranslatableComponent("message.voicechat.accept_invite.hover")))))
                             .withStyle(ChatFormatting.GREEN)
             ), Util.NIL_UUID);
@@ -91,36 +134,43 @@ public class VoicechatCommands {
             return 1;
         })));
 
-        literalBuilder.then(Commands.literal("join").then(Commands.argument("group", StringArgumentType.string()).executes((commandSource) -> {
-            if (!Voicechat.SERVER_CONFIG.groupsEnabled.get()) {
-                commandSource.getSource().sendFailure(new TranslatableComponent("message.voicechat.groups_disabled"));
-                return 1;
-            }
+        literalBuilder.then(Commands.literal("join").then(Commands.argument("group", StringArgumentType.string())
+                .executes(commandSource -> joinGroup(commandSource, null))
+                .then(Commands.argument("password", StringArgumentType.string())
+                        .executes(commandSource -> joinGroup(commandSource, StringArgumentType.getString(commandSource, "password"))))));
 
-            Server server = Voicechat.SERVER.getServer();
-            if (server == null) {
-                commandSource.getSource().sendSuccess(new TranslatableComponent("message.voicechat.voice_chat_unavailable"), false);
-                return 1;
-            }
-            ServerPlayer source = commandSource.getSource().getPlayerOrException();
-            String groupName = StringArgumentType.getString(commandSource, "group");
+        dispatcher.register(literalBuilder);
+    }
 
-            if (groupName.length() > 16) {
-                commandSource.getSource().sendFailure(new TranslatableComponent("message.voicechat.group_name_too_long"));
-                return 1;
-            }
+    private static int joinGroup(CommandContext<CommandSourceStack> commandSource, @Nullable String password) throws CommandSyntaxException {
+        if (!Voicechat.SERVER_CONFIG.groupsEnabled.get()) {
+            commandSource.getSource().sendFailure(new TranslatableComponent("message.voicechat.groups_disabled"));
+            return 1;
+        }
 
-            if (!Voicechat.GROUP_REGEX.matcher(groupName).matches()) {
-                commandSource.getSource().sendFailure(new TranslatableComponent("message.voicechat.invalid_group_name"));
-                return 1;
-            }
+        Server server = Voicechat.SERVER.getServer();
+        if (server == null) {
+            commandSource.getSource().sendSuccess(new TranslatableComponent("message.voicechat.voice_chat_unavailable"), false);
+            return 1;
+        }
+        ServerPlayer source = commandSource.getSource().getPlayerOrException();
+        String groupName = StringArgumentType.getString(commandSource, "group");
 
-            NetManager.sendToClient(source, new SetGroupPacket(groupName));
-            commandSource.getSource().sendSuccess(new TranslatableComponent("message.voicechat.join_successful", new TextComponent(groupName).withStyle(ChatFormatting.GRAY)), false);
+        if (groupName.length() > 16) {
+            commandSource.getSource().sendFailure(new TranslatableComponent("message.voicechat.group_name_too_long"));
             return 1;
-        })));
+        }
 
-        dispatcher.register(literalBuilder);
+        GroupManager.JoinResult result = server.getPlayerStateManager().joinGroup(source, groupName, password);
+        if (result.getTranslationKey() != null) {
+            commandSource.getSource().sendFailure(new TranslatableComponent(result.getTranslationKey()));
+            return 1;
+        }
+
+        // Older clients only know about their group if it is sent to them
+        NetManager.sendToClient(source, new SetGroupPacket(groupName));
+        commandSource.getSource().sendSuccess(new TranslatableComponent("message.voicechat.join_successful", new TextComponent(groupName).withStyle(ChatFormatting.GRAY)), false);
+        return 1;
     }
 
 }
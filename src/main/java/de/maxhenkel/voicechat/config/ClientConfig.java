@@ -10,6 +10,7 @@ public class ClientConfig {
     public final ConfigBuilder.ConfigEntry<Double> microphoneAmplification;
     public final ConfigBuilder.ConfigEntry<MicrophoneActivationType> microphoneActivationType;
     public final ConfigBuilder.ConfigEntry<Integer> outputBufferSize;
+    public final ConfigBuilder.ConfigEntry<Integer> outputLineDelay;
     public final ConfigBuilder.ConfigEntry<Integer> deactivationDelay;
     public final ConfigBuilder.ConfigEntry<String> microphone;
     public final ConfigBuilder.ConfigEntry<String> speaker;
@@ -19,6 +20,7 @@ public class ClientConfig {
     public final ConfigBuilder.ConfigEntry<Boolean> hideIcons;
     public final ConfigBuilder.ConfigEntry<Boolean> showGroupHUD;
     public final ConfigBuilder.ConfigEntry<HUDIconLocation> hudIconLocation;
+    public final ConfigBuilder.ConfigEntry<Boolean> audioMixer;
 
     public ClientConfig(ConfigBuilder builder) {
         voiceChatVolume = builder.doubleEntry("voice_chat_volume", 1D, 0D, 2D);
@@ -26,6 +28,7 @@ public class ClientConfig {
         microphoneAmplification = builder.doubleEntry("microphone_amplification", 1D, 0D, 4D);
         microphoneActivationType = builder.enumEntry("microphone_activation_type", MicrophoneActivationType.PTT);
         outputBufferSize = builder.integerEntry("output_buffer_size", 6, 1, 16);
+        outputLineDelay = builder.integerEntry("output_line_delay", 40, 10, 200);
         deactivationDelay = builder.integerEntry("voice_deactivation_delay", 25, 0, 100);
         microphone = builder.stringEntry("microphone", "");
         speaker = builder.stringEntry("speaker", "");
@@ -35,6 +38,7 @@ public class ClientConfig {
         hideIcons = builder.booleanEntry("hide_icons", false);
         showGroupHUD = builder.booleanEntry("show_group_hud", true);
         hudIconLocation = builder.enumEntry("hud_icon_location", HUDIconLocation.LEFT);
+        audioMixer = builder.booleanEntry("audio_mixer", false);
     }
 
 }
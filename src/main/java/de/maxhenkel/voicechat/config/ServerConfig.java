@@ -4,24 +4,55 @@ import de.maxhenkel.opus4j.Opus;
 
 public class ServerConfig {
 
+    /**
+     * The audio level in dB below which a frame is considered silent, if the server doesn't send its own threshold
+     */
+    public static final int DEFAULT_SILENCE_THRESHOLD = -60;
+
     public final ConfigBuilder.ConfigEntry<Integer> voiceChatPort;
     public final ConfigBuilder.ConfigEntry<String> voiceChatBindAddress;
     public final ConfigBuilder.ConfigEntry<Double> voiceChatDistance;
     public final ConfigBuilder.ConfigEntry<Double> voiceChatFadeDistance;
+    public final ConfigBuilder.ConfigEntry<Double> playerStateDistance;
     public final ConfigBuilder.ConfigEntry<Enum<Codec>> voiceChatCodec;
     public final ConfigBuilder.ConfigEntry<Integer> voiceChatMtuSize;
+    public final ConfigBuilder.ConfigEntry<Integer> frameDuration;
+    public final ConfigBuilder.ConfigEntry<Integer> bitrate;
+    public final ConfigBuilder.ConfigEntry<Integer> complexity;
+    public final ConfigBuilder.ConfigEntry<Boolean> vbr;
+    public final ConfigBuilder.ConfigEntry<Boolean> dtx;
+    public final ConfigBuilder.ConfigEntry<Boolean> suppressSilence;
+    public final ConfigBuilder.ConfigEntry<Integer> silenceThreshold;
     public final ConfigBuilder.ConfigEntry<Integer> keepAlive;
     public final ConfigBuilder.ConfigEntry<Boolean> groupsEnabled;
+    public final ConfigBuilder.ConfigEntry<Integer> maxGroupMembers;
+    public final ConfigBuilder.ConfigEntry<Integer> workerThreads;
+    public final ConfigBuilder.ConfigEntry<Integer> sockets;
+    public final ConfigBuilder.ConfigEntry<Integer> sendBatchSize;
+    public final ConfigBuilder.ConfigEntry<Integer> packetQueueSize;
 
     public ServerConfig(ConfigBuilder builder) {
         voiceChatPort = builder.integerEntry("port", 24454, 0, 65535);
         voiceChatBindAddress = builder.stringEntry("bind_address", "0.0.0.0");
         voiceChatDistance = builder.doubleEntry("voice_distance", 32D, 1D, 1_000_000D);
         voiceChatFadeDistance = builder.doubleEntry("voice_fade_distance", 16D, 1D, 1_000_000D);
+        playerStateDistance = builder.doubleEntry("player_state_distance", 128D, 0D, 1_000_000D);
         voiceChatCodec = builder.enumEntry("codec", Codec.VOIP);
         voiceChatMtuSize = builder.integerEntry("mtu_size", 1024, 256, 10000);
+        frameDuration = builder.integerEntry("frame_duration", 20, 10, 60);
+        bitrate = builder.integerEntry("bitrate", 0, 0, 510000);
+        complexity = builder.integerEntry("complexity", 10, 0, 10);
+        vbr = builder.booleanEntry("vbr", true);
+        dtx = builder.booleanEntry("dtx", false);
+        suppressSilence = builder.booleanEntry("suppress_silence", false);
+        silenceThreshold = builder.integerEntry("silence_threshold", DEFAULT_SILENCE_THRESHOLD, -127, 0);
         keepAlive = builder.integerEntry("keep_alive", 1000, 1000, Integer.MAX_VALUE);
         groupsEnabled = builder.booleanEntry("enable_groups", true);
+        maxGroupMembers = builder.integerEntry("max_group_members", 0, 0, 1000);
+        workerThreads = builder.integerEntry("worker_threads", 1, 1, 64);
+        sockets = builder.integerEntry("sockets", 1, 1, 64);
+        sendBatchSize = builder.integerEntry("send_batch_size", 64, 1, 1024);
+        packetQueueSize = builder.integerEntry("packet_queue_size", 256, 16, 65536);
     }
 
     public enum Codec {
@@ -106,11 +106,15 @@ public class MicTestButton extends AbstractButton {
         private final TargetDataLine mic;
         private final SourceDataLine speaker;
         private final FloatControl gainControl;
+        private final byte[] buff;
+        private final short[] samples;
         private boolean running;
         private long lastRender;
 
         public VoiceThread() throws LineUnavailableException {
             this.running = true;
+            this.buff = new byte[client.getAudioChannelConfig().getFrameSize()];
+            this.samples = new short[buff.length / 2];
             setDaemon(true);
             audioFormat = client.getAudioChannelConfig().getMonoFormat();
             mic = getMic();
@@ -143,11 +147,12 @@ public class MicTestButton extends AbstractButton {
                     Utils.sleep(1);
                     continue;
                 }
-                byte[] buff = new byte[dataLength];
                 mic.read(buff, 0, buff.length);
-                Utils.adjustVolumeMono(buff, VoicechatClient.CLIENT_CONFIG.microphoneAmplification.get().floatValue());
+                Utils.bytesToShorts(buff, samples);
+                Utils.adjustVolumeMono(samples, VoicechatClient.CLIENT_CONFIG.microphoneAmplification.get().floatValue());
+                Utils.shortsToBytes(samples, samples.length, buff);
 
-                micListener.onMicValue(Utils.dbToPerc(Utils.getHighestAudioLevel(buff)));
+                micListener.onMicValue(Utils.dbToPerc(Utils.getHighestAudioLevel(samples)));
 
                 gainControl.setValue(Math.min(Math.max(Utils.percentageToDB(VoicechatClient.CLIENT_CONFIG.voiceChatVolume.get().floatValue()), gainControl.getMinimum()), gainControl.getMaximum()));
 
@@ -2,6 +2,8 @@ package de.maxhenkel.voicechat.net;
 
 import de.maxhenkel.voicechat.Voicechat;
 import de.maxhenkel.voicechat.config.ServerConfig;
+import de.maxhenkel.voicechat.voice.client.AudioChannelConfig;
+import de.maxhenkel.voicechat.voice.common.NetworkMessage;
 import net.minecraft.network.FriendlyByteBuf;
 import net.minecraft.resources.ResourceLocation;
 
@@ -19,12 +21,20 @@ public class InitPacket implements Packet<InitPacket> {
     private double voiceChatFadeDistance;
     private int keepAlive;
     private boolean groupsEnabled;
+    private int protocolVersion;
+    private int bitrate;
+    private int complexity;
+    private boolean vbr;
+    private boolean dtx;
+    private int frameDuration;
+    private boolean suppressSilence;
+    private int silenceThreshold;
 
     public InitPacket() {
 
     }
 
-    public InitPacket(UUID secret, int serverPort, ServerConfig.Codec codec, int mtuSize, double voiceChatDistance, double voiceChatFadeDistance, int keepAlive, boolean groupsEnabled) {
+    public InitPacket(UUID secret, int serverPort, ServerConfig.Codec codec, int mtuSize, double voiceChatDistance, double voiceChatFadeDistance, int keepAlive, boolean groupsEnabled, int protocolVersion, int bitrate, int complexity, boolean vbr, boolean dtx, int frameDuration, boolean suppressSilence, int silenceThreshold) {
         this.secret = secret;
         this.serverPort = serverPort;
         this.codec = codec;
@@ -33,6 +43,14 @@ public class InitPacket implements Packet<InitPacket> {
         this.voiceChatFadeDistance = voiceChatFadeDistance;
         this.keepAlive = keepAlive;
         this.groupsEnabled = groupsEnabled;
+        this.protocolVersion = protocolVersion;
+        this.bitrate = bitrate;
+        this.complexity = complexity;
+        this.vbr = vbr;
+        this.dtx = dtx;
+        this.frameDuration = frameDuration;
+        this.suppressSilence = suppressSilence;
+        this.silenceThreshold = silenceThreshold;
     }
 
     public UUID getSecret() {
@@ -67,6 +85,53 @@ public class InitPacket implements Packet<InitPacket> {
         return groupsEnabled;
     }
 
+    /**
+     * @return the highest voice protocol version supported by the server
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * @return the bitrate of the encoder in bits per second or 0 for the default bitrate
+     */
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    public int getComplexity() {
+        return complexity;
+    }
+
+    public boolean isVbr() {
+        return vbr;
+    }
+
+    public boolean isDtx() {
+        return dtx;
+    }
+
+    /**
+     * @return the duration of a single audio frame in milliseconds
+     */
+    public int getFrameDuration() {
+        return frameDuration;
+    }
+
+    /**
+     * @return if the server doesn't forward frames below the silence threshold
+     */
+    public boolean isSuppressSilence() {
+        return suppressSilence;
+    }
+
+    /**
+     * @return the audio level in dB below which a frame is considered silent
+     */
+    public int getSilenceThreshold() {
+        return silenceThreshold;
+    }
+
     @Override
     public ResourceLocation getID() {
         return SECRET;
@@ -82,6 +147,29 @@ public class InitPacket implements Packet<InitPacket> {
         voiceChatFadeDistance = buf.readDouble();
         keepAlive = buf.readInt();
         groupsEnabled = buf.readBoolean();
+        // Older servers don't send their protocol version
+        protocolVersion = buf.isReadable() ? buf.readInt() : NetworkMessage.LEGACY_PROTOCOL;
+        // Older servers don't send encoder settings
+        if (buf.isReadable()) {
+            bitrate = buf.readInt();
+            complexity = buf.readByte();
+            vbr = buf.readBoolean();
+            dtx = buf.readBoolean();
+        } else {
+            bitrate = 0;
+            complexity = 10;
+            vbr = true;
+            dtx = false;
+        }
+        frameDuration = buf.isReadable() ? buf.readByte() : AudioChannelConfig.LEGACY_FRAME_DURATION;
+        // Older servers don't send their silence settings
+        if (buf.isReadable()) {
+            suppressSilence = buf.readBoolean();
+            silenceThreshold = buf.readByte();
+        } else {
+            suppressSilence = false;
+            silenceThreshold = ServerConfig.DEFAULT_SILENCE_THRESHOLD;
+        }
         return this;
     }
 
@@ -95,6 +183,14 @@ public class InitPacket implements Packet<InitPacket> {
         buf.writeDouble(voiceChatFadeDistance);
         buf.writeInt(keepAlive);
         buf.writeBoolean(groupsEnabled);
+        buf.writeInt(protocolVersion);
+        buf.writeInt(bitrate);
+        buf.writeByte(complexity);
+        buf.writeBoolean(vbr);
+        buf.writeBoolean(dtx);
+        buf.writeByte(frameDuration);
+        buf.writeBoolean(suppressSilence);
+        buf.writeByte(silenceThreshold);
     }
 
 }
@@ -0,0 +1,62 @@
+package de.maxhenkel.voicechat.net;
+
+import de.maxhenkel.voicechat.Voicechat;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.resources.ResourceLocation;
+
+import javax.annotation.Nullable;
+
+/**
+ * Requests the server to add the player to a group
+ * The server creates the group with the provided password if it doesn't exist
+ */
+public class JoinGroupPacket implements Packet<JoinGroupPacket> {
+
+    public static final ResourceLocation JOIN_GROUP = new ResourceLocation(Voicechat.MODID, "join_group");
+
+    private String group;
+    @Nullable
+    private String password;
+
+    public JoinGroupPacket() {
+
+    }
+
+    public JoinGroupPacket(String group, @Nullable String password) {
+        this.group = group;
+        this.password = password;
+    }
+
+    public String getGroup() {
+        return group;
+    }
+
+    @Nullable
+    public String getPassword() {
+        return password;
+    }
+
+    @Override
+    public ResourceLocation getID() {
+        return JOIN_GROUP;
+    }
+
+    @Override
+    public JoinGroupPacket fromBytes(FriendlyByteBuf buf) {
+        group = buf.readUtf(16);
+        if (buf.readBoolean()) {
+            password = buf.readUtf(32);
+        }
+        return this;
+    }
+
+    @Override
+    public void toBytes(FriendlyByteBuf buf) {
+        buf.writeUtf(group, 16);
+        buf.writeBoolean(password != null);
+        if (password != null) {
+            buf.writeUtf(password, 32);
+        }
+    }
+
+}
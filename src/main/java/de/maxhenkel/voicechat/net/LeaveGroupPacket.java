@@ -0,0 +1,30 @@
+package de.maxhenkel.voicechat.net;
+
+import de.maxhenkel.voicechat.Voicechat;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.resources.ResourceLocation;
+
+public class LeaveGroupPacket implements Packet<LeaveGroupPacket> {
+
+    public static final ResourceLocation LEAVE_GROUP = new ResourceLocation(Voicechat.MODID, "leave_group");
+
+    public LeaveGroupPacket() {
+
+    }
+
+    @Override
+    public ResourceLocation getID() {
+        return LEAVE_GROUP;
+    }
+
+    @Override
+    public LeaveGroupPacket fromBytes(FriendlyByteBuf buf) {
+        return this;
+    }
+
+    @Override
+    public void toBytes(FriendlyByteBuf buf) {
+
+    }
+
+}
@@ -7,6 +7,7 @@ import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.multiplayer.ClientPacketListener;
 import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.resources.ResourceLocation;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.server.network.ServerGamePacketListenerImpl;
@@ -36,6 +37,14 @@ public class NetManager {
         ClientPlayNetworking.send(packet.getID(), buffer);
     }
 
+    /**
+     * @param id the packet ID
+     * @return if the server registered a receiver for the packet
+     */
+    public static boolean canSendToServer(ResourceLocation id) {
+        return ClientPlayNetworking.canSend(id);
+    }
+
     public static <T extends Packet<T>> void registerClientReceiver(Class<T> packetType, ClientReceiver<T> packetReceiver) {
         try {
             T dummyPacket = packetType.newInstance();
@@ -53,6 +62,15 @@ public class NetManager {
         }
     }
 
+    /**
+     * @param player the player
+     * @param id     the packet ID
+     * @return if the client of the player registered a receiver for the packet
+     */
+    public static boolean canSendToClient(ServerPlayer player, ResourceLocation id) {
+        return ServerPlayNetworking.canSend(player, id);
+    }
+
     public static void sendToClient(ServerPlayer player, Packet<?> packet) {
         FriendlyByteBuf buffer = new FriendlyByteBuf(Unpooled.buffer());
         packet.toBytes(buffer);
@@ -0,0 +1,239 @@
+package de.maxhenkel.voicechat.net;
+
+import com.mojang.authlib.GameProfile;
+import de.maxhenkel.voicechat.Voicechat;
+import de.maxhenkel.voicechat.voice.common.PlayerState;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtUtils;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.resources.ResourceLocation;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Sends the changed states of multiple players
+ * The game profile of a player is only sent with the first state of that player a client receives
+ * Players that are not of interest for the client anymore are sent as removed
+ */
+public class PlayerStateDeltaPacket implements Packet<PlayerStateDeltaPacket> {
+
+    public static final ResourceLocation PLAYER_STATE_DELTA = new ResourceLocation(Voicechat.MODID, "player_state_delta");
+
+    /**
+     * Clients ignore packets with a newer format
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int DISABLED = 1;
+    private static final int DISCONNECTED = 1 << 1;
+    private static final int GROUP_CHANGED = 1 << 2;
+    private static final int HAS_GROUP = 1 << 3;
+    private static final int HAS_PROFILE = 1 << 4;
+    private static final int REMOVED = 1 << 5;
+
+    private List<Delta> deltas;
+
+    public PlayerStateDeltaPacket() {
+
+    }
+
+    public PlayerStateDeltaPacket(List<Delta> deltas) {
+        this.deltas = deltas;
+    }
+
+    public List<Delta> getDeltas() {
+        return deltas;
+    }
+
+    @Override
+    public ResourceLocation getID() {
+        return PLAYER_STATE_DELTA;
+    }
+
+    @Override
+    public PlayerStateDeltaPacket fromBytes(FriendlyByteBuf buf) {
+        int version = buf.readByte();
+        if (version != FORMAT_VERSION) {
+            Voicechat.LOGGER.warn("Ignoring player states with unknown format version {}", version);
+            buf.skipBytes(buf.readableBytes());
+            deltas = Collections.emptyList();
+            return this;
+        }
+        int count = buf.readVarInt();
+        deltas = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Delta delta = new Delta();
+            delta.player = buf.readUUID();
+            int flags = buf.readByte();
+            delta.disabled = (flags & DISABLED) != 0;
+            delta.disconnected = (flags & DISCONNECTED) != 0;
+            delta.groupChanged = (flags & GROUP_CHANGED) != 0;
+            delta.removed = (flags & REMOVED) != 0;
+            if ((flags & HAS_GROUP) != 0) {
+                delta.group = buf.readUtf(16);
+            }
+            if ((flags & HAS_PROFILE) != 0) {
+                delta.gameProfile = NbtUtils.readGameProfile(buf.readNbt());
+                delta.playerId = buf.readVarInt();
+            }
+            deltas.add(delta);
+        }
+        return this;
+    }
+
+    @Override
+    public void toBytes(FriendlyByteBuf buf) {
+        buf.writeByte(FORMAT_VERSION);
+        buf.writeVarInt(deltas.size());
+        for (Delta delta : deltas) {
+            buf.writeUUID(delta.player);
+            int flags = 0;
+            if (delta.disabled) {
+                flags |= DISABLED;
+            }
+            if (delta.disconnected) {
+                flags |= DISCONNECTED;
+            }
+            boolean writeGroup = delta.groupChanged && delta.group != null;
+            if (delta.groupChanged) {
+                flags |= GROUP_CHANGED;
+            }
+            if (writeGroup) {
+                flags |= HAS_GROUP;
+            }
+            if (delta.gameProfile != null) {
+                flags |= HAS_PROFILE;
+            }
+            if (delta.removed) {
+                flags |= REMOVED;
+            }
+            buf.writeByte(flags);
+            if (writeGroup) {
+                buf.writeUtf(delta.group, 16);
+            }
+            if (delta.gameProfile != null) {
+                buf.writeNbt(NbtUtils.writeGameProfile(new CompoundTag(), delta.gameProfile));
+                buf.writeVarInt(delta.playerId);
+            }
+        }
+    }
+
+    public static class Delta {
+        private UUID player;
+        private boolean disabled;
+        private boolean disconnected;
+        private boolean groupChanged;
+        @Nullable
+        private String group;
+        @Nullable
+        private GameProfile gameProfile;
+        private int playerId;
+        private boolean removed;
+
+        private Delta() {
+
+        }
+
+        /**
+         * Creates a delta that removes the state of the player from the client
+         * Clients that don't know about removed states mark the player as disconnected instead
+         *
+         * @param player the player
+         */
+        public Delta(UUID player) {
+            this.player = player;
+            this.disconnected = true;
+            this.removed = true;
+        }
+
+        /**
+         * @param state        the new state of the player
+         * @param groupChanged if the group needs to be sent
+         * @param withProfile  if the game profile needs to be sent
+         * @param playerId     the session player ID of the player (Only sent with the game profile)
+         */
+        public Delta(PlayerState state, boolean groupChanged, boolean withProfile, int playerId) {
+            this.player = state.getGameProfile().getId();
+            this.disabled = state.isDisabled();
+            this.disconnected = state.isDisconnected();
+            this.groupChanged = groupChanged;
+            this.group = state.getGroup();
+            this.gameProfile = withProfile ? state.getGameProfile() : null;
+            this.playerId = playerId;
+        }
+
+        public UUID getPlayer() {
+            return player;
+        }
+
+        public boolean isDisabled() {
+            return disabled;
+        }
+
+        public boolean isDisconnected() {
+            return disconnected;
+        }
+
+        public boolean isGroupChanged() {
+            return groupChanged;
+        }
+
+        /**
+         * @return if the client should forget the state of the player
+         */
+        public boolean isRemoved() {
+            return removed;
+        }
+
+        @Nullable
+        public String getGroup() {
+            return group;
+        }
+
+        /**
+         * @return the game profile or null if the client already received it
+         */
+        @Nullable
+        public GameProfile getGameProfile() {
+            return gameProfile;
+        }
+
+        /**
+         * @return the session player ID or 0 if it wasn't sent
+         */
+        public int getPlayerId() {
+            return playerId;
+        }
+
+        /**
+         * Applies the changes to the known state of the player
+         *
+         * @param state the state the client knows or null if the client doesn't know the player yet
+         * @return the new state or null if the state can't be created without the game profile
+         */
+        @Nullable
+        public PlayerState apply(@Nullable PlayerState state) {
+            if (state == null) {
+                if (gameProfile == null) {
+                    return null;
+                }
+                state = new PlayerState(disabled, disconnected, gameProfile);
+            } else {
+                state.setDisabled(disabled);
+                state.setDisconnected(disconnected);
+                if (gameProfile != null) {
+                    state.setGameProfile(gameProfile);
+                }
+            }
+            if (groupChanged) {
+                state.setGroup(group);
+            }
+            return state;
+        }
+    }
+
+}
@@ -10,6 +10,7 @@ public class PlayerStatePacket implements Packet<PlayerStatePacket> {
     public static final ResourceLocation PLAYER_STATE = new ResourceLocation(Voicechat.MODID, "player_state");
 
     private PlayerState playerState;
+    private int playerId;
 
     public PlayerStatePacket() {
 
@@ -19,10 +20,22 @@ public class PlayerStatePacket implements Packet<PlayerStatePacket> {
         this.playerState = playerState;
     }
 
+    public PlayerStatePacket(PlayerState playerState, int playerId) {
+        this.playerState = playerState;
+        this.playerId = playerId;
+    }
+
     public PlayerState getPlayerState() {
         return playerState;
     }
 
+    /**
+     * @return the session player ID of the player or 0 if it wasn't sent
+     */
+    public int getPlayerId() {
+        return playerId;
+    }
+
     @Override
     public ResourceLocation getID() {
         return PLAYER_STATE;
@@ -31,12 +44,15 @@ public class PlayerStatePacket implements Packet<PlayerStatePacket> {
     @Override
     public PlayerStatePacket fromBytes(FriendlyByteBuf buf) {
         playerState = PlayerState.fromBytes(buf);
+        // Older servers don't send the session player ID
+        playerId = buf.isReadable() ? buf.readVarInt() : 0;
         return this;
     }
 
     @Override
     public void toBytes(FriendlyByteBuf buf) {
         playerState.toBytes(buf);
+        buf.writeVarInt(playerId);
     }
 
 }
@@ -12,6 +12,7 @@ import java.util.UUID;
 public class PlayerStatesPacket implements Packet<PlayerStatesPacket> {
 
     private Map<UUID, PlayerState> playerStates;
+    private Map<UUID, Integer> playerIds;
 
     public static final ResourceLocation PLAYER_STATES = new ResourceLocation(Voicechat.MODID, "player_states");
 
@@ -19,14 +20,22 @@ public class PlayerStatesPacket implements Packet<PlayerStatesPacket> {
 
     }
 
-    public PlayerStatesPacket(Map<UUID, PlayerState> playerStates) {
+    public PlayerStatesPacket(Map<UUID, PlayerState> playerStates, Map<UUID, Integer> playerIds) {
         this.playerStates = playerStates;
+        this.playerIds = playerIds;
     }
 
     public Map<UUID, PlayerState> getPlayerStates() {
         return playerStates;
     }
 
+    /**
+     * @return the session player IDs of all logged in players
+     */
+    public Map<UUID, Integer> getPlayerIds() {
+        return playerIds;
+    }
+
     @Override
     public ResourceLocation getID() {
         return PLAYER_STATES;
@@ -41,6 +50,15 @@ public class PlayerStatesPacket implements Packet<PlayerStatesPacket> {
             playerStates.put(playerState.getGameProfile().getId(), playerState);
         }
 
+        playerIds = new HashMap<>();
+        // Older servers don't send the session player IDs
+        if (buf.isReadable()) {
+            int idCount = buf.readVarInt();
+            for (int i = 0; i < idCount; i++) {
+                playerIds.put(buf.readUUID(), buf.readVarInt());
+            }
+        }
+
         return this;
     }
 
@@ -50,6 +68,12 @@ public class PlayerStatesPacket implements Packet<PlayerStatesPacket> {
         for (Map.Entry<UUID, PlayerState> entry : playerStates.entrySet()) {
             entry.getValue().toBytes(buf);
         }
+        Map<UUID, Integer> ids = new HashMap<>(playerIds);
+        buf.writeVarInt(ids.size());
+        for (Map.Entry<UUID, Integer> entry : ids.entrySet()) {
+            buf.writeUUID(entry.getKey());
+            buf.writeVarInt(entry.getValue());
+        }
     }
 
 }
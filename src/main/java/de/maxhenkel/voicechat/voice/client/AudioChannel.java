@@ -2,7 +2,9 @@ package de.maxhenkel.voicechat.voice.client;
 
 import de.maxhenkel.voicechat.Voicechat;
 import de.maxhenkel.voicechat.VoicechatClient;
+import de.maxhenkel.voicechat.voice.common.NetworkMessage;
 import de.maxhenkel.voicechat.voice.common.OpusDecoder;
+import de.maxhenkel.voicechat.voice.common.PacketLossPacket;
 import de.maxhenkel.voicechat.voice.common.PlayerState;
 import de.maxhenkel.voicechat.voice.common.SoundPacket;
 import de.maxhenkel.voicechat.voice.common.Utils;
@@ -20,6 +22,12 @@ import java.util.concurrent.TimeUnit;
 
 public class AudioChannel extends Thread {
 
+    private static final long POLL_INTERVAL = 5L;
+    /**
+     * The time in milliseconds after which the packet loss gets reported to the talking player
+     */
+    private static final int LOSS_REPORT_INTERVAL = 1000;
+
     private Minecraft minecraft;
     private Client client;
     private UUID uuid;
@@ -29,7 +37,17 @@ public class AudioChannel extends Thread {
     private FloatControl gainControl;
     private boolean stopped;
     private OpusDecoder decoder;
-    private long lastSequenceNumber;
+    private boolean decoderClosed;
+    private JitterBuffer jitterBuffer;
+    private int lineDelay;
+    private float[] volume;
+    private short[] samples;
+    private short[] stereoSamples;
+    private byte[] stereoData;
+    private int framesSinceLossReport;
+    private long lostPacketsAtLossReport;
+    private int lastLossPercentage;
+    private long recoveredPackets;
 
     public AudioChannel(Client client, UUID uuid) {
         this.client = client;
@@ -38,7 +56,12 @@ public class AudioChannel extends Thread {
         this.lastPacketTime = System.currentTimeMillis();
         this.stopped = false;
         this.decoder = new OpusDecoder(client.getAudioChannelConfig().getSampleRate(), client.getAudioChannelConfig().getFrameSize(), client.getMtuSize());
-        this.lastSequenceNumber = -1L;
+        this.jitterBuffer = new JitterBuffer(client.getAudioChannelConfig().getFrameDuration(), 1, client.getAudioChannelConfig().toFrames(VoicechatClient.CLIENT_CONFIG.outputBufferSize.get()));
+        this.lineDelay = client.getAudioChannelConfig().getStereoBufferSize(VoicechatClient.CLIENT_CONFIG.outputLineDelay.get());
+        this.volume = new float[2];
+        this.samples = new short[client.getAudioChannelConfig().getFrameSize() / 2];
+        this.stereoSamples = new short[samples.length * 2];
+        this.stereoData = new byte[stereoSamples.length * 2];
         this.minecraft = Minecraft.getInstance();
         setDaemon(true);
         setName("AudioChannelThread-" + uuid.toString());
@@ -82,47 +105,27 @@ public class AudioChannel extends Thread {
                 // to prevent the last sound getting repeated
                 if (speaker.getBufferSize() - speaker.available() <= 0 && speaker.isActive()) {
                     speaker.stop();
-                    lastSequenceNumber = -1L;
                 }
 
-                SoundPacket packet = queue.poll(10, TimeUnit.MILLISECONDS);
-                if (packet == null) {
-                    continue;
+                SoundPacket packet = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (packet != null) {
+                    lastPacketTime = System.currentTimeMillis();
+                    jitterBuffer.add(packet, lastPacketTime);
                 }
-                lastPacketTime = System.currentTimeMillis();
+                long time = receive();
 
-                if (lastSequenceNumber >= 0 && packet.getSequenceNumber() <= lastSequenceNumber) {
+                // Keeping a few frames in the speaker, so scheduling delays of this thread don't cause underruns
+                // The jitter buffer takes care of compensating the network latency
+                if (speaker.getBufferSize() - speaker.available() >= lineDelay) {
                     continue;
                 }
 
-                // Filling the speaker with silence for one packet size
-                // to build a small buffer to compensate for network latency
-                if (speaker.getBufferSize() - speaker.available() <= 0) {
-                    byte[] data = new byte[Math.min(client.getAudioChannelConfig().getFrameSize() * VoicechatClient.CLIENT_CONFIG.outputBufferSize.get(), speaker.getBufferSize() - client.getAudioChannelConfig().getFrameSize())];
-                    speaker.write(data, 0, data.length);
-                }
-                if (minecraft.level == null || minecraft.player == null) {
+                int length = nextFrame(time);
+                if (length <= 0) {
                     continue;
                 }
 
-                client.getTalkCache().updateTalking(uuid);
-
-                if (lastSequenceNumber >= 0) {
-                    int packetsToCompensate = (int) (packet.getSequenceNumber() - (lastSequenceNumber + 1));
-                    for (int i = 0; i < packetsToCompensate; i++) {
-                        if (speaker.available() < client.getAudioChannelConfig().getFrameSize()) {
-                            Voicechat.LOGGER.debug("Could not compensate more than " + i + " audio packets");
-                            break;
-                        }
-                        writeToSpeaker(decoder.decode(null));
-                    }
-                }
-
-                lastSequenceNumber = packet.getSequenceNumber();
-
-                byte[] decodedAudio = decoder.decode(packet.getData());
-
-                writeToSpeaker(decodedAudio);
+                writeToSpeaker(length);
             }
         } catch (Throwable e) {
             e.printStackTrace();
@@ -132,47 +135,181 @@ public class AudioChannel extends Thread {
                 speaker.flush();
                 speaker.close();
             }
-            decoder.close();
-            Voicechat.LOGGER.debug("Closed audio channel for " + uuid);
+            closeDecoder();
         }
     }
 
-    private void writeToSpeaker(byte[] monoData) {
-        PlayerState state = VoicechatClient.CLIENT.getPlayerStateManager().getState(uuid);
-        byte[] stereo;
-        float percentage = 1F;
+    /**
+     * Moves all received packets into the jitter buffer
+     *
+     * @return the current time
+     */
+    private long receive() {
+        long time = System.currentTimeMillis();
+        SoundPacket packet;
+        while ((packet = queue.poll()) != null) {
+            lastPacketTime = time;
+            jitterBuffer.add(packet, time);
+        }
+        return time;
+    }
 
-        if (state != null && state.hasGroup()) {
-            stereo = Utils.convertToStereo(monoData, 1F, 1F);
-        } else {
-            Player player = minecraft.level.getPlayerByUUID(uuid);
-            if (player == null) {
-                return;
-            }
-            float distance = player.distanceTo(minecraft.player);
-            float fadeDistance = (float) client.getVoiceChatFadeDistance();
-            float maxDistance = (float) client.getVoiceChatDistance();
+    /**
+     * Decodes the next frame of the jitter buffer into {@link #samples}
+     *
+     * @param time the current time
+     * @return the amount of decoded mono samples or -1 if there is nothing to play
+     */
+    private int nextFrame(long time) {
+        if (!jitterBuffer.isReady(time)) {
+            return -1;
+        }
 
-            if (distance > fadeDistance) {
-                percentage = 1F - Math.min((distance - fadeDistance) / (maxDistance - fadeDistance), 1F);
-            }
+        SoundPacket next = jitterBuffer.poll();
+        reportPacketLoss();
+
+        if (minecraft.level == null || minecraft.player == null) {
+            return -1;
+        }
 
-            if (VoicechatClient.CLIENT_CONFIG.stereo.get()) {
-                Pair<Float, Float> stereoVolume = Utils.getStereoVolume(minecraft, player.position(), client.getVoiceChatDistance());
-                stereo = Utils.convertToStereo(monoData, percentage * stereoVolume.getLeft(), percentage * stereoVolume.getRight());
-            } else {
-                stereo = Utils.convertToStereo(monoData, percentage, percentage);
+        // Concealed frames and frames with an audio level below the silence level don't count as talking
+        if (next != null && (!next.hasAudioLevel() || next.getAudioLevel() >= client.getSilenceThreshold())) {
+            client.getTalkCache().updateTalking(uuid);
+        }
+
+        if (next == null) {
+            SoundPacket following = jitterBuffer.peek();
+            if (following != null) {
+                // Recovering the lost frame from the forward error correction data of the next packet
+                recoveredPackets++;
+                return decoder.decode(following.getData(), samples, true);
             }
         }
 
-        gainControl.setValue(Math.min(Math.max(Utils.percentageToDB(VoicechatClient.CLIENT_CONFIG.voiceChatVolume.get().floatValue() * (float) VoicechatClient.VOLUME_CONFIG.getVolume(uuid)), gainControl.getMinimum()), gainControl.getMaximum()));
+        // Using packet loss concealment if the packet is missing
+        return decoder.decode(next == null ? null : next.getData(), samples);
+    }
+
+    /**
+     * Sends the packet loss of the last {@link #LOSS_REPORT_INTERVAL} milliseconds to the talking player, so its encoder can adjust the forward error correction
+     */
+    private void reportPacketLoss() {
+        if (++framesSinceLossReport * client.getAudioChannelConfig().getFrameDuration() < LOSS_REPORT_INTERVAL) {
+            return;
+        }
+        long lostPackets = jitterBuffer.getLostPackets();
+        int percentage = (int) ((lostPackets - lostPacketsAtLossReport) * 100L / framesSinceLossReport);
+        framesSinceLossReport = 0;
+        lostPacketsAtLossReport = lostPackets;
+        if (percentage <= 0 && lastLossPercentage <= 0) {
+            return;
+        }
+        lastLossPercentage = percentage;
+        if (client.getProtocolVersion() < NetworkMessage.AEAD_PROTOCOL) {
+            return;
+        }
+        try {
+            client.sendToServer(new NetworkMessage(new PacketLossPacket(uuid, percentage)));
+        } catch (Exception e) {
+            Voicechat.LOGGER.debug("Failed to send packet loss report: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Adds the next frame of this channel to the mix of an {@link AudioMixer}
+     * Only called by the mixer thread, this channel is not started as a thread in this case
+     *
+     * @param mix         the interleaved stereo samples to add the audio to
+     * @param gainControl the gain control of the mixers speaker, only used for the valid gain range
+     * @return if any audio was added
+     */
+    boolean mix(int[] mix, FloatControl gainControl) {
+        int length = nextFrame(receive());
+        if (length <= 0 || !calculateVolume(volume)) {
+            return false;
+        }
+        float gain = (float) Math.pow(10D, getGain(gainControl) / 20D);
+        float left = volume[0] * gain;
+        float right = volume[1] * gain;
+        length = Math.min(length, mix.length / 2);
+        for (int i = 0; i < length; i++) {
+            short sample = samples[i];
+            mix[i * 2] += (int) (sample * left);
+            mix[i * 2 + 1] += (int) (sample * right);
+        }
+        return true;
+    }
+
+    void closeDecoder() {
+        if (decoderClosed) {
+            return;
+        }
+        decoderClosed = true;
+        decoder.close();
+        Voicechat.LOGGER.debug("Closed audio channel for {} ({} late, {} lost, {} recovered, {} skipped packets, {} underruns, {} ms jitter)", uuid, jitterBuffer.getLatePackets(), jitterBuffer.getLostPackets(), recoveredPackets, jitterBuffer.getSkippedPackets(), jitterBuffer.getUnderruns(), Math.round(jitterBuffer.getJitter()));
+    }
+
+    private void writeToSpeaker(int length) {
+        if (!calculateVolume(volume)) {
+            return;
+        }
+        Utils.convertToStereo(samples, length, stereoSamples, volume[0], volume[1]);
+        Utils.shortsToBytes(stereoSamples, length * 2, stereoData);
+
+        gainControl.setValue(getGain(gainControl));
 
-        speaker.write(stereo, 0, stereo.length);
+        speaker.write(stereoData, 0, length * 4);
         speaker.start();
     }
 
+    /**
+     * @return the gain of this player in decibels
+     */
+    private float getGain(FloatControl gainControl) {
+        return Math.min(Math.max(Utils.percentageToDB(VoicechatClient.CLIENT_CONFIG.voiceChatVolume.get().floatValue() * (float) VoicechatClient.VOLUME_CONFIG.getVolume(uuid)), gainControl.getMinimum()), gainControl.getMaximum());
+    }
+
+    /**
+     * Calculates the volume of the left and the right channel depending on the position of the player
+     *
+     * @param volume the array to store the left and the right volume in
+     * @return false if the player could not be found
+     */
+    private boolean calculateVolume(float[] volume) {
+        PlayerState state = VoicechatClient.CLIENT.getPlayerStateManager().getState(uuid);
+        float percentage = 1F;
+
+        if (state != null && state.hasGroup()) {
+            volume[0] = 1F;
+            volume[1] = 1F;
+            return true;
+        }
+
+        Player player = minecraft.level.getPlayerByUUID(uuid);
+        if (player == null) {
+            return false;
+        }
+        float distance = player.distanceTo(minecraft.player);
+        float fadeDistance = (float) client.getVoiceChatFadeDistance();
+        float maxDistance = (float) client.getVoiceChatDistance();
+
+        if (distance > fadeDistance) {
+            percentage = 1F - Math.min((distance - fadeDistance) / (maxDistance - fadeDistance), 1F);
+        }
+
+        if (VoicechatClient.CLIENT_CONFIG.stereo.get()) {
+            Pair<Float, Float> stereoVolume = Utils.getStereoVolume(minecraft, player.position(), client.getVoiceChatDistance());
+            volume[0] = percentage * stereoVolume.getLeft();
+            volume[1] = percentage * stereoVolume.getRight();
+        } else {
+            volume[0] = percentage;
+            volume[1] = percentage;
+        }
+        return true;
+    }
+
     public boolean isClosed() {
         return stopped;
     }
 
-}
\ No newline at end of file
+}
@@ -6,18 +6,46 @@ import javax.sound.sampled.AudioFormat;
 
 public class AudioChannelConfig {
 
+    /**
+     * The frame durations in milliseconds that are supported by Opus and this mod
+     */
+    private static final int[] FRAME_DURATIONS = {10, 20, 40, 60};
+    /**
+     * The frame duration of older clients and the one the frame counts in the client config refer to
+     */
+    public static final int LEGACY_FRAME_DURATION = 20;
+
     private AudioFormat monoFormat;
     private AudioFormat stereoFormat;
     private int sampleRate;
+    private int frameDuration;
     private int frameSize;
 
     public AudioChannelConfig(Client client) {
         sampleRate = 48000;
-        frameSize = (sampleRate / 1000) * 2 * 20;
+        frameDuration = getSupportedFrameDuration(client.getFrameDuration());
+        if (frameDuration != client.getFrameDuration()) {
+            Voicechat.LOGGER.warn("Unsupported frame duration {} ms, using {} ms", client.getFrameDuration(), frameDuration);
+        }
+        frameSize = (sampleRate / 1000) * 2 * frameDuration;
         monoFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sampleRate, 16, 1, 2, sampleRate, false);
         stereoFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sampleRate, 16, 2, 4, sampleRate, false);
 
-        Voicechat.LOGGER.info("Setting sample rate to {} Hz, codec to {} and frame size to {} bytes", sampleRate, client.getCodec().name(), frameSize);
+        Voicechat.LOGGER.info("Setting sample rate to {} Hz, codec to {} and frame size to {} bytes ({} ms)", sampleRate, client.getCodec().name(), frameSize, frameDuration);
+    }
+
+    /**
+     * @param frameDuration the requested frame duration in milliseconds
+     * @return the longest supported frame duration that is not longer than the requested one
+     */
+    public static int getSupportedFrameDuration(int frameDuration) {
+        int supported = FRAME_DURATIONS[0];
+        for (int duration : FRAME_DURATIONS) {
+            if (duration <= frameDuration) {
+                supported = duration;
+            }
+        }
+        return supported;
     }
 
     public AudioFormat getMonoFormat() {
@@ -32,7 +60,33 @@ public class AudioChannelConfig {
         return sampleRate;
     }
 
+    /**
+     * @return the duration of a single frame in milliseconds
+     */
+    public int getFrameDuration() {
+        return frameDuration;
+    }
+
     public int getFrameSize() {
         return frameSize;
     }
+
+    /**
+     * @param milliseconds the minimum duration
+     * @return the size of whole stereo frames in bytes that cover the duration
+     */
+    public int getStereoBufferSize(int milliseconds) {
+        int frames = Math.max((milliseconds + frameDuration - 1) / frameDuration, 1);
+        return frames * frameSize * 2;
+    }
+
+    /**
+     * Converts an amount of 20 ms frames to the amount of frames with the configured duration
+     *
+     * @param frames the amount of 20 ms frames
+     * @return the amount of frames covering the same time
+     */
+    public int toFrames(int frames) {
+        return (frames * LEGACY_FRAME_DURATION + frameDuration - 1) / frameDuration;
+    }
 }
@@ -0,0 +1,139 @@
+package de.maxhenkel.voicechat.voice.client;
+
+import de.maxhenkel.voicechat.Voicechat;
+import de.maxhenkel.voicechat.VoicechatClient;
+
+import javax.sound.sampled.FloatControl;
+import javax.sound.sampled.SourceDataLine;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Mixes the audio of all audio channels into a single speaker on a single thread.
+ * The audio channels are not started as threads and don't open their own speakers when they are part of the mixer.
+ */
+public class AudioMixer extends Thread {
+
+    private static final long POLL_INTERVAL = 5L;
+
+    private final Client client;
+    private final List<AudioChannel> channels;
+    private final int[] mix;
+    private final byte[] output;
+    private final int lineDelay;
+    private SourceDataLine speaker;
+    private FloatControl gainControl;
+    private volatile boolean running;
+
+    public AudioMixer(Client client) {
+        this.client = client;
+        this.channels = new CopyOnWriteArrayList<>();
+        this.mix = new int[client.getAudioChannelConfig().getFrameSize()];
+        this.output = new byte[client.getAudioChannelConfig().getFrameSize() * 2];
+        this.lineDelay = client.getAudioChannelConfig().getStereoBufferSize(VoicechatClient.CLIENT_CONFIG.outputLineDelay.get());
+        this.running = true;
+        setDaemon(true);
+        setPriority(Thread.MAX_PRIORITY);
+        setName("AudioMixerThread");
+    }
+
+    public void addChannel(AudioChannel channel) {
+        channels.add(channel);
+    }
+
+    @Override
+    public void run() {
+        try {
+            speaker = DataLines.getSpeaker();
+            speaker.open(client.getAudioChannelConfig().getStereoFormat());
+            gainControl = (FloatControl) speaker.getControl(FloatControl.Type.MASTER_GAIN);
+            gainControl.setValue(0F);
+            while (running) {
+                if (VoicechatClient.CLIENT.getPlayerStateManager().isDisabled()) {
+                    channels.forEach(AudioChannel::closeAndKill);
+                }
+                for (AudioChannel channel : channels) {
+                    if (channel.isClosed()) {
+                        channels.remove(channel);
+                        channel.closeDecoder();
+                    }
+                }
+
+                int queued = speaker.getBufferSize() - speaker.available();
+
+                // Stopping the data line when the buffer is empty
+                // to prevent the last sound getting repeated
+                if (queued <= 0 && speaker.isActive()) {
+                    speaker.stop();
+                }
+
+                // Keeping a few frames in the speaker, so scheduling delays of this thread don't cause underruns
+                // The jitter buffers of the channels take care of compensating the network latency
+                if (queued >= lineDelay || !mix()) {
+                    Thread.sleep(POLL_INTERVAL);
+                    continue;
+                }
+
+                speaker.write(output, 0, output.length);
+                speaker.start();
+            }
+        } catch (Throwable e) {
+            e.printStackTrace();
+        } finally {
+            if (speaker != null) {
+                speaker.stop();
+                speaker.flush();
+                speaker.close();
+            }
+            for (AudioChannel channel : channels) {
+                channel.closeDecoder();
+            }
+            channels.clear();
+            Voicechat.LOGGER.debug("Closed audio mixer");
+        }
+    }
+
+    /**
+     * Mixes the next frame of all channels into the output buffer
+     * The mix gets scaled down if it exceeds the 16 bit range to prevent clipping
+     *
+     * @return if any channel had audio to play
+     */
+    private boolean mix() {
+        Arrays.fill(mix, 0);
+        boolean hasAudio = false;
+        for (AudioChannel channel : channels) {
+            try {
+                if (channel.mix(mix, gainControl)) {
+                    hasAudio = true;
+                }
+            } catch (Exception e) {
+                // A broken channel must not stop the playback of all other channels
+                Voicechat.LOGGER.error("Failed to mix audio of {}: {}", channel.getUUID(), e.getMessage());
+                channel.closeAndKill();
+            }
+        }
+        if (!hasAudio) {
+            return false;
+        }
+
+        int peak = 0;
+        for (int sample : mix) {
+            peak = Math.max(peak, Math.abs(sample));
+        }
+        float scale = peak > Short.MAX_VALUE ? (float) Short.MAX_VALUE / (float) peak : 1F;
+
+        for (int i = 0; i < mix.length; i++) {
+            int sample = (int) (mix[i] * scale);
+            output[i * 2] = (byte) sample;
+            output[i * 2 + 1] = (byte) (sample >> 8);
+        }
+        return true;
+    }
+
+    public void close() {
+        running = false;
+    }
+
+}
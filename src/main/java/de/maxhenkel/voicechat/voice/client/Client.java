@@ -7,49 +7,83 @@ import de.maxhenkel.voicechat.events.ClientVoiceChatEvents;
 import de.maxhenkel.voicechat.voice.common.*;
 
 import javax.annotation.Nullable;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Client extends Thread {
 
+    private static final ThreadLocal<NetworkMessage.DatagramBuffer> SEND_BUFFER = ThreadLocal.withInitial(NetworkMessage.DatagramBuffer::new);
+
     private DatagramSocket socket;
     private InetAddress address;
     private int port;
+    private InetSocketAddress socketAddress;
     private UUID playerUUID;
     private UUID secret;
+    private SecretKeySpec key;
     private ServerConfig.Codec codec;
     private int mtuSize;
     private double voiceChatDistance;
     private double voiceChatFadeDistance;
     private int keepAlive;
     private boolean groupsEnabled;
+    private int serverProtocolVersion;
+    private int bitrate;
+    private int complexity;
+    private boolean vbr;
+    private boolean dtx;
+    private int frameDuration;
+    private boolean suppressSilence;
+    private int silenceThreshold;
+    private volatile int protocolVersion;
+    private volatile int playerId;
+    private AtomicLong packetCounter;
+    private ReplayWindow replayWindow;
     private MicThread micThread;
     private boolean running;
     private TalkCache talkCache;
     private boolean authenticated;
     private Map<UUID, AudioChannel> audioChannels;
+    @Nullable
+    private AudioMixer audioMixer;
     private AuthThread authThread;
     private AudioChannelConfig audioChannelConfig;
     private long lastKeepAlive;
 
-    public Client(String serverIp, int serverPort, UUID playerUUID, UUID secret, ServerConfig.Codec codec, int mtuSize, double voiceChatDistance, double voiceChatFadeDistance, int keepAlive, boolean groupsEnabled) throws IOException {
+    public Client(String serverIp, int serverPort, UUID playerUUID, UUID secret, ServerConfig.Codec codec, int mtuSize, double voiceChatDistance, double voiceChatFadeDistance, int keepAlive, boolean groupsEnabled, int serverProtocolVersion, int bitrate, int complexity, boolean vbr, boolean dtx, int frameDuration, boolean suppressSilence, int silenceThreshold) throws IOException {
         this.address = InetAddress.getByName(serverIp);
         this.port = serverPort;
+        this.socketAddress = new InetSocketAddress(address, port);
         this.socket = new DatagramSocket();
         this.socket.setTrafficClass(0x04); // IPTOS_RELIABILITY
         this.playerUUID = playerUUID;
         this.secret = secret;
+        this.key = AES.createKeySpec(secret);
         this.codec = codec;
         this.mtuSize = mtuSize;
         this.voiceChatDistance = voiceChatDistance;
         this.voiceChatFadeDistance = voiceChatFadeDistance;
         this.keepAlive = keepAlive;
         this.groupsEnabled = groupsEnabled;
+        this.serverProtocolVersion = serverProtocolVersion;
+        this.bitrate = bitrate;
+        this.complexity = complexity;
+        this.vbr = vbr;
+        this.dtx = dtx;
+        this.frameDuration = frameDuration;
+        this.suppressSilence = suppressSilence;
+        this.silenceThreshold = silenceThreshold;
+        this.protocolVersion = NetworkMessage.LEGACY_PROTOCOL;
+        this.packetCounter = new AtomicLong();
+        this.replayWindow = new ReplayWindow();
         this.lastKeepAlive = -1;
         this.running = true;
         this.talkCache = new TalkCache();
@@ -73,6 +107,32 @@ public class Client extends Thread {
         return secret;
     }
 
+    public SecretKeySpec getKey() {
+        return key;
+    }
+
+    /**
+     * @return the negotiated protocol version (Always the legacy protocol until the server acknowledged the authentication)
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * @return the session player ID assigned by the server or 0 if the server didn't assign one
+     */
+    public int getPlayerId() {
+        return playerId;
+    }
+
+    public long nextPacketCounter() {
+        return packetCounter.getAndIncrement();
+    }
+
+    public ReplayWindow getReplayWindow() {
+        return replayWindow;
+    }
+
     public ServerConfig.Codec getCodec() {
         return codec;
     }
@@ -81,6 +141,46 @@ public class Client extends Thread {
         return mtuSize;
     }
 
+    /**
+     * @return the bitrate of the encoder in bits per second or 0 for the default bitrate
+     */
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    public int getComplexity() {
+        return complexity;
+    }
+
+    public boolean isVbr() {
+        return vbr;
+    }
+
+    public boolean isDtx() {
+        return dtx;
+    }
+
+    /**
+     * @return the frame duration requested by the server in milliseconds
+     */
+    public int getFrameDuration() {
+        return frameDuration;
+    }
+
+    /**
+     * @return if silent frames should not be sent, because the server wouldn't forward them
+     */
+    public boolean isSuppressSilence() {
+        return suppressSilence;
+    }
+
+    /**
+     * @return the audio level in dB below which a frame is considered silent
+     */
+    public int getSilenceThreshold() {
+        return silenceThreshold;
+    }
+
     public boolean groupsEnabled() {
         return groupsEnabled;
     }
@@ -120,6 +220,22 @@ public class Client extends Thread {
         Voicechat.LOGGER.debug("Clearing audio channels");
         audioChannels.forEach((uuid, audioChannel) -> audioChannel.closeAndKill());
         audioChannels.clear();
+        closeAudioMixer();
+    }
+
+    private AudioMixer getAudioMixer() {
+        if (audioMixer == null) {
+            audioMixer = new AudioMixer(this);
+            audioMixer.start();
+        }
+        return audioMixer;
+    }
+
+    private void closeAudioMixer() {
+        if (audioMixer != null) {
+            audioMixer.close();
+            audioMixer = null;
+        }
     }
 
     private void startMicThread() {
@@ -135,10 +251,22 @@ public class Client extends Thread {
     public void run() {
         try {
             while (running) {
-                NetworkMessage in = NetworkMessage.readPacketClient(socket, this);
+                NetworkMessage in;
+                try {
+                    in = NetworkMessage.readPacketClient(socket, this);
+                } catch (GeneralSecurityException e) {
+                    Voicechat.LOGGER.debug("Dropping invalid packet: {}", e.getMessage());
+                    continue;
+                }
                 if (in.getPacket() instanceof AuthenticateAckPacket) {
                     if (!authenticated) {
-                        Voicechat.LOGGER.info("Server acknowledged authentication");
+                        AuthenticateAckPacket ack = (AuthenticateAckPacket) in.getPacket();
+                        playerId = ack.getPlayerId();
+                        protocolVersion = Math.min(ack.getProtocolVersion(), NetworkMessage.PROTOCOL_VERSION);
+                        if (protocolVersion >= NetworkMessage.COMPACT_PROTOCOL && playerId <= 0) {
+                            protocolVersion = NetworkMessage.AEAD_PROTOCOL;
+                        }
+                        Voicechat.LOGGER.info("Server acknowledged authentication with protocol version {}", protocolVersion);
                         authenticated = true;
                         ClientVoiceChatEvents.VOICECHAT_CONNECTED.invoker().accept(this);
                         startMicThread();
@@ -147,12 +275,21 @@ public class Client extends Thread {
                 } else if (in.getPacket() instanceof SoundPacket) {
                     if (!VoicechatClient.CLIENT.getPlayerStateManager().isDisabled()) {
                         SoundPacket packet = (SoundPacket) in.getPacket();
-                        AudioChannel sendTo = audioChannels.get(packet.getSender());
+                        UUID sender = packet.getSender() != null ? packet.getSender() : VoicechatClient.CLIENT.getPlayerStateManager().getPlayerUUID(packet.getSenderId());
+                        if (sender == null) {
+                            Voicechat.LOGGER.debug("Dropping sound packet of unknown player ID {}", packet.getSenderId());
+                            continue;
+                        }
+                        AudioChannel sendTo = audioChannels.get(sender);
                         if (sendTo == null) {
-                            AudioChannel ch = new AudioChannel(this, packet.getSender());
+                            AudioChannel ch = new AudioChannel(this, sender);
                             ch.addToQueue(packet);
-                            ch.start();
-                            audioChannels.put(packet.getSender(), ch);
+                            if (VoicechatClient.CLIENT_CONFIG.audioMixer.get()) {
+                                getAudioMixer().addChannel(ch);
+                            } else {
+                                ch.start();
+                            }
+                            audioChannels.put(sender, ch);
                         } else {
                             sendTo.addToQueue(packet);
                         }
@@ -167,6 +304,10 @@ public class Client extends Thread {
                 } else if (in.getPacket() instanceof KeepAlivePacket) {
                     lastKeepAlive = System.currentTimeMillis();
                     sendToServer(new NetworkMessage(new KeepAlivePacket()));
+                } else if (in.getPacket() instanceof PacketLossPacket) {
+                    if (micThread != null) {
+                        micThread.onPacketLossReport(((PacketLossPacket) in.getPacket()).getLossPercentage());
+                    }
                 }
             }
         } catch (Exception e) {
@@ -186,6 +327,7 @@ public class Client extends Thread {
         if (micThread != null) {
             micThread.close();
         }
+        closeAudioMixer();
     }
 
     @Nullable
@@ -202,8 +344,9 @@ public class Client extends Thread {
     }
 
     public void sendToServer(NetworkMessage message) throws Exception {
-        byte[] data = message.writeClient(this);
-        socket.send(new DatagramPacket(data, data.length, address, port));
+        NetworkMessage.DatagramBuffer buffer = SEND_BUFFER.get();
+        message.writeClient(this, buffer.getBuffer());
+        buffer.send(socket, socketAddress);
     }
 
     public void checkTimeout() {
@@ -227,7 +370,7 @@ public class Client extends Thread {
             while (running && !authenticated) {
                 try {
                     Voicechat.LOGGER.info("Trying to authenticate voice connection");
-                    sendToServer(new NetworkMessage(new AuthenticatePacket(playerUUID, secret)));
+                    sendToServer(new NetworkMessage(new AuthenticatePacket(playerUUID, secret, Math.min(serverProtocolVersion, NetworkMessage.PROTOCOL_VERSION))));
                 } catch (Exception e) {
                     if (!socket.isClosed()) {
                         Voicechat.LOGGER.error("Failed to authenticate voice connection: {}", e.getMessage());
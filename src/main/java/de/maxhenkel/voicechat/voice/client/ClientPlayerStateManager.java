@@ -3,31 +3,60 @@ package de.maxhenkel.voicechat.voice.client;
 import de.maxhenkel.voicechat.VoicechatClient;
 import de.maxhenkel.voicechat.events.ClientVoiceChatEvents;
 import de.maxhenkel.voicechat.events.ClientWorldEvents;
-import de.maxhenkel.voicechat.net.NetManager;
-import de.maxhenkel.voicechat.net.PlayerStatePacket;
-import de.maxhenkel.voicechat.net.PlayerStatesPacket;
+import de.maxhenkel.voicechat.net.*;
 import de.maxhenkel.voicechat.voice.common.PlayerState;
 import net.minecraft.client.Minecraft;
 import net.minecraft.world.entity.player.Player;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ClientPlayerStateManager {
 
     private boolean muted;
     private PlayerState state;
     private Map<UUID, PlayerState> states;
+    private Map<Integer, UUID> playerIds;
 
     public ClientPlayerStateManager() {
         muted = VoicechatClient.CLIENT_CONFIG.muted.get();
         state = new PlayerState(VoicechatClient.CLIENT_CONFIG.disabled.get(), true, Minecraft.getInstance().getUser().getGameProfile());
         states = new HashMap<>();
+        playerIds = new ConcurrentHashMap<>();
         NetManager.registerClientReceiver(PlayerStatePacket.class, (client, handler, responseSender, packet) -> {
             states.put(packet.getPlayerState().getGameProfile().getId(), packet.getPlayerState());
+            // The server decides about the group of this player
+            if (packet.getPlayerState().getGameProfile().getId().equals(state.getGameProfile().getId())) {
+                state.setGroup(packet.getPlayerState().getGroup());
+            }
+            if (packet.getPlayerId() > 0) {
+                playerIds.put(packet.getPlayerId(), packet.getPlayerState().getGameProfile().getId());
+            }
+        });
+        NetManager.registerClientReceiver(PlayerStateDeltaPacket.class, (client, handler, responseSender, packet) -> {
+            for (PlayerStateDeltaPacket.Delta delta : packet.getDeltas()) {
+                if (delta.isRemoved()) {
+                    states.remove(delta.getPlayer());
+                    continue;
+                }
+                PlayerState playerState = delta.apply(states.get(delta.getPlayer()));
+                if (playerState == null) {
+                    continue;
+                }
+                states.put(delta.getPlayer(), playerState);
+                if (delta.isGroupChanged() && delta.getPlayer().equals(state.getGameProfile().getId())) {
+                    state.setGroup(delta.getGroup());
+                }
+                if (delta.getPlayerId() > 0) {
+                    playerIds.put(delta.getPlayerId(), delta.getPlayer());
+                }
+            }
         });
         NetManager.registerClientReceiver(PlayerStatesPacket.class, (client, handler, responseSender, packet) -> {
             states = packet.getPlayerStates();
+            playerIds.clear();
+            packet.getPlayerIds().forEach((uuid, id) -> playerIds.put(id, uuid));
         });
         ClientVoiceChatEvents.VOICECHAT_CONNECTED.register(this::onVoiceChatConnected);
         ClientVoiceChatEvents.VOICECHAT_DISCONNECTED.register(this::onVoiceChatDisconnected);
@@ -128,11 +157,34 @@ public class ClientPlayerStateManager {
         return state.getGroup();
     }
 
+    /**
+     * Requests to join or leave a group
+     * Servers that manage groups send the new group back with the state of this player
+     *
+     * @param group the group or null to leave the current group
+     */
     public void setGroup(@Nullable String group) {
+        if (NetManager.canSendToServer(JoinGroupPacket.JOIN_GROUP)) {
+            NetManager.sendToServer(group == null ? new LeaveGroupPacket() : new JoinGroupPacket(group, null));
+            return;
+        }
         state.setGroup(group);
         syncOwnState();
     }
 
+    /**
+     * Applies a group that was assigned by the server
+     * Servers that don't manage groups only know the group of this player once it sent its state with the group
+     *
+     * @param group the group or null if the player is not in a group
+     */
+    public void applyGroup(@Nullable String group) {
+        state.setGroup(group);
+        if (!NetManager.canSendToServer(JoinGroupPacket.JOIN_GROUP)) {
+            syncOwnState();
+        }
+    }
+
     public List<PlayerState> getPlayerStates() {
         return new ArrayList<>(states.values());
     }
@@ -142,7 +194,17 @@ public class ClientPlayerStateManager {
         return states.get(player);
     }
 
+    /**
+     * @param playerId the session player ID
+     * @return the player or null if the ID is unknown
+     */
+    @Nullable
+    public UUID getPlayerUUID(int playerId) {
+        return playerIds.get(playerId);
+    }
+
     public void clearStates() {
         states.clear();
+        playerIds.clear();
     }
 }
@@ -69,7 +69,7 @@ public class ClientVoiceEvents {
         });
 
         NetManager.registerClientReceiver(SetGroupPacket.class, (client, handler, responseSender, packet) -> {
-            playerStateManager.setGroup(packet.getGroup());
+            playerStateManager.applyGroup(packet.getGroup());
             minecraft.setScreen(null);
         });
     }
@@ -87,7 +87,7 @@ public class ClientVoiceEvents {
                     InetSocketAddress address = (InetSocketAddress) socketAddress;
                     String ip = address.getHostString();
                     Voicechat.LOGGER.info("Connecting to server: '" + ip + ":" + initPacket.getServerPort() + "'");
-                    client = new Client(ip, initPacket.getServerPort(), playerUUID, initPacket.getSecret(), initPacket.getCodec(), initPacket.getMtuSize(), initPacket.getVoiceChatDistance(), initPacket.getVoiceChatFadeDistance(), initPacket.getKeepAlive(), initPacket.groupsEnabled());
+                    client = new Client(ip, initPacket.getServerPort(), playerUUID, initPacket.getSecret(), initPacket.getCodec(), initPacket.getMtuSize(), initPacket.getVoiceChatDistance(), initPacket.getVoiceChatFadeDistance(), initPacket.getKeepAlive(), initPacket.groupsEnabled(), initPacket.getProtocolVersion(), initPacket.getBitrate(), initPacket.getComplexity(), initPacket.isVbr(), initPacket.isDtx(), initPacket.getFrameDuration(), initPacket.isSuppressSilence(), initPacket.getSilenceThreshold());
                     client.start();
                 }
             } catch (Exception e) {
@@ -0,0 +1,271 @@
+package de.maxhenkel.voicechat.voice.client;
+
+import de.maxhenkel.voicechat.voice.common.SoundPacket;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reorders the sound packets of a single player by their sequence number and delays the playback by an adaptive amount of packets.
+ * The delay is derived from the inter-arrival jitter (RFC 3550), so it stays low on stable connections and grows on unstable ones.
+ * This class is not thread safe.
+ */
+public class JitterBuffer {
+
+    /**
+     * The maximum amount of packets the sequence number of a packet can be ahead of the next packet to play
+     */
+    private static final int CAPACITY = 64;
+
+    private final SoundPacket[] packets;
+    private final long frameDuration;
+    private final int minDelay;
+    private final int maxDelay;
+    private int size;
+    private long nextSequenceNumber;
+    private long lastPlayedSequenceNumber;
+    private boolean buffering;
+    private long bufferingSince;
+    private long starvedSince;
+    private double jitter;
+    private long lastArrival;
+    private long lastArrivalSequenceNumber;
+    private int targetDelay;
+
+    private long latePackets;
+    private long lostPackets;
+    private long skippedPackets;
+    private long underruns;
+
+    /**
+     * @param frameDuration the duration of a single packet in milliseconds
+     * @param minDelay      the minimum amount of packets to buffer
+     * @param maxDelay      the maximum amount of packets to buffer
+     */
+    public JitterBuffer(long frameDuration, int minDelay, int maxDelay) {
+        this.packets = new SoundPacket[CAPACITY];
+        this.frameDuration = frameDuration;
+        this.minDelay = Math.max(minDelay, 1);
+        this.maxDelay = Math.min(Math.max(maxDelay, this.minDelay), CAPACITY / 2);
+        this.nextSequenceNumber = -1L;
+        this.lastPlayedSequenceNumber = -1L;
+        this.buffering = true;
+        this.starvedSince = -1L;
+        this.lastArrivalSequenceNumber = -1L;
+        this.targetDelay = this.minDelay;
+    }
+
+    /**
+     * Adds a received packet
+     *
+     * @param packet      the packet
+     * @param arrivalTime the time the packet was received
+     */
+    public void add(SoundPacket packet, long arrivalTime) {
+        long sequenceNumber = packet.getSequenceNumber();
+
+        if (nextSequenceNumber >= 0L && Math.abs(sequenceNumber - nextSequenceNumber) >= CAPACITY) {
+            // The sender restarted or we missed too many packets
+            clear();
+        }
+        if (sequenceNumber <= lastPlayedSequenceNumber) {
+            latePackets++;
+            return;
+        }
+
+        updateJitter(sequenceNumber, arrivalTime);
+
+        if (starvedSince >= 0L) {
+            if (arrivalTime - starvedSince <= maxDelay * frameDuration) {
+                underruns++;
+            }
+            starvedSince = -1L;
+        }
+
+        int index = index(sequenceNumber);
+        SoundPacket existing = packets[index];
+        if (existing != null) {
+            if (existing.getSequenceNumber() == sequenceNumber) {
+                return;
+            }
+            size--;
+        }
+        packets[index] = packet;
+        size++;
+
+        if (buffering) {
+            if (nextSequenceNumber < 0L || sequenceNumber < nextSequenceNumber) {
+                nextSequenceNumber = sequenceNumber;
+            }
+            if (size == 1) {
+                bufferingSince = arrivalTime;
+            }
+        }
+    }
+
+    private void updateJitter(long sequenceNumber, long arrivalTime) {
+        if (lastArrivalSequenceNumber >= 0L && sequenceNumber <= lastArrivalSequenceNumber) {
+            return;
+        }
+        if (lastArrivalSequenceNumber >= 0L) {
+            long transitDifference = (arrivalTime - lastArrival) - (sequenceNumber - lastArrivalSequenceNumber) * frameDuration;
+            // Pauses in speech are not jitter
+            if (transitDifference < maxDelay * frameDuration) {
+                jitter += (Math.abs(transitDifference) - jitter) / 16D;
+            }
+        }
+        lastArrival = arrivalTime;
+        lastArrivalSequenceNumber = sequenceNumber;
+        targetDelay = (int) Math.max(minDelay, Math.min(maxDelay, Math.ceil(jitter * 2D / frameDuration)));
+    }
+
+    /**
+     * Checks if the next packet can be played
+     * Starts buffering again if there are no packets left
+     *
+     * @param time the current time
+     * @return if {@link #poll()} can be called
+     */
+    public boolean isReady(long time) {
+        if (!buffering) {
+            if (size > 0) {
+                return true;
+            }
+            buffering = true;
+            starvedSince = time;
+            return false;
+        }
+        if (size <= 0) {
+            return false;
+        }
+        if (size < targetDelay && time - bufferingSince < targetDelay * frameDuration) {
+            return false;
+        }
+        buffering = false;
+        nextSequenceNumber = lowestSequenceNumber();
+        return true;
+    }
+
+    /**
+     * Removes the next packet
+     * Should only be called if {@link #isReady(long)} returned true
+     *
+     * @return the next packet or null if the packet got lost and needs to be concealed
+     */
+    @Nullable
+    public SoundPacket poll() {
+        // Skipping a packet if there is more buffered than needed to reduce the latency
+        if (size > targetDelay + 2) {
+            SoundPacket skipped = remove(nextSequenceNumber);
+            nextSequenceNumber++;
+            if (skipped != null) {
+                skippedPackets++;
+            }
+        }
+        SoundPacket packet = remove(nextSequenceNumber);
+        lastPlayedSequenceNumber = nextSequenceNumber;
+        nextSequenceNumber++;
+        if (packet == null) {
+            lostPackets++;
+        }
+        return packet;
+    }
+
+    /**
+     * Returns the packet that gets played after the last polled packet without removing it
+     *
+     * @return the packet or null if it wasn't received yet
+     */
+    @Nullable
+    public SoundPacket peek() {
+        int index = index(nextSequenceNumber);
+        SoundPacket packet = packets[index];
+        if (packet == null || packet.getSequenceNumber() != nextSequenceNumber) {
+            return null;
+        }
+        return packet;
+    }
+
+    @Nullable
+    private SoundPacket remove(long sequenceNumber) {
+        int index = index(sequenceNumber);
+        SoundPacket packet = packets[index];
+        if (packet == null || packet.getSequenceNumber() != sequenceNumber) {
+            return null;
+        }
+        packets[index] = null;
+        size--;
+        return packet;
+    }
+
+    private long lowestSequenceNumber() {
+        long lowest = Long.MAX_VALUE;
+        for (SoundPacket packet : packets) {
+            if (packet != null && packet.getSequenceNumber() < lowest) {
+                lowest = packet.getSequenceNumber();
+            }
+        }
+        return lowest;
+    }
+
+    private static int index(long sequenceNumber) {
+        return (int) Math.floorMod(sequenceNumber, (long) CAPACITY);
+    }
+
+    public void clear() {
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = null;
+        }
+        size = 0;
+        nextSequenceNumber = -1L;
+        lastPlayedSequenceNumber = -1L;
+        buffering = true;
+        starvedSince = -1L;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the current amount of packets that get buffered before the playback starts
+     */
+    public int getTargetDelay() {
+        return targetDelay;
+    }
+
+    /**
+     * @return the estimated inter-arrival jitter in milliseconds
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @return the amount of packets that arrived after they should have been played
+     */
+    public long getLatePackets() {
+        return latePackets;
+    }
+
+    /**
+     * @return the amount of packets that were missing when they should have been played
+     */
+    public long getLostPackets() {
+        return lostPackets;
+    }
+
+    /**
+     * @return the amount of packets that got skipped to reduce the latency
+     */
+    public long getSkippedPackets() {
+        return skippedPackets;
+    }
+
+    /**
+     * @return the amount of times the buffer ran empty while the player was talking
+     */
+    public long getUnderruns() {
+        return underruns;
+    }
+
+}
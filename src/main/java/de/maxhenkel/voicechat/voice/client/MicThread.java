@@ -12,16 +12,31 @@ import javax.sound.sampled.TargetDataLine;
 
 public class MicThread extends Thread {
 
+    /**
+     * The time after which a packet loss report is no longer considered
+     */
+    private static final long LOSS_REPORT_TIMEOUT = 5_000L;
+
     private Client client;
     private TargetDataLine mic;
     private boolean running;
     private boolean microphoneLocked;
     private OpusEncoder encoder;
+    private byte[] readBuff;
+    private short[] buff;
+    private short[] lastBuff;
+    private boolean hasLastBuff;
+    private volatile int reportedPacketLoss;
+    private volatile long reportedPacketLossTime;
 
     public MicThread(Client client) throws LineUnavailableException {
         this.client = client;
         this.running = true;
         this.encoder = new OpusEncoder(client.getAudioChannelConfig().getSampleRate(), client.getAudioChannelConfig().getFrameSize(), client.getMtuSize(), client.getCodec().getOpusValue());
+        this.encoder.configure(client.getBitrate(), client.getComplexity(), client.isVbr(), client.isDtx());
+        this.readBuff = new byte[client.getAudioChannelConfig().getFrameSize()];
+        this.buff = new short[readBuff.length / 2];
+        this.lastBuff = new short[readBuff.length / 2];
         setDaemon(true);
         setName("MicrophoneThread");
         AudioFormat af = client.getAudioChannelConfig().getMonoFormat();
@@ -51,7 +66,6 @@ public class MicThread extends Thread {
 
     private boolean activating;
     private int deactivationDelay;
-    private byte[] lastBuff;
 
     private void voice() {
         wasPTT = false;
@@ -74,14 +88,12 @@ public class MicThread extends Thread {
             Utils.sleep(1);
             return;
         }
-        byte[] buff = new byte[dataLength];
-        mic.read(buff, 0, buff.length);
-        Utils.adjustVolumeMono(buff, VoicechatClient.CLIENT_CONFIG.microphoneAmplification.get().floatValue());
+        readFrame();
 
         int offset = Utils.getActivationOffset(buff, VoicechatClient.CLIENT_CONFIG.voiceActivationThreshold.get());
         if (activating) {
             if (offset < 0) {
-                if (deactivationDelay >= VoicechatClient.CLIENT_CONFIG.deactivationDelay.get()) {
+                if (deactivationDelay >= client.getAudioChannelConfig().toFrames(VoicechatClient.CLIENT_CONFIG.deactivationDelay.get())) {
                     activating = false;
                     deactivationDelay = 0;
                 } else {
@@ -93,14 +105,18 @@ public class MicThread extends Thread {
             }
         } else {
             if (offset > 0) {
-                if (lastBuff != null) {
+                if (hasLastBuff) {
                     sendAudioPacket(lastBuff);
                 }
                 sendAudioPacket(buff);
                 activating = true;
             }
         }
+        // Swapping the buffers to keep the last frame without copying it
+        short[] temp = lastBuff;
         lastBuff = buff;
+        buff = temp;
+        hasLastBuff = true;
     }
 
     private boolean wasPTT;
@@ -127,23 +143,50 @@ public class MicThread extends Thread {
             Utils.sleep(1);
             return;
         }
-        byte[] buff = new byte[dataLength];
-        mic.read(buff, 0, buff.length);
-        Utils.adjustVolumeMono(buff, VoicechatClient.CLIENT_CONFIG.microphoneAmplification.get().floatValue());
+        readFrame();
         sendAudioPacket(buff);
     }
 
+    /**
+     * Reads a single frame from the microphone into {@link #buff} and applies the amplification
+     */
+    private void readFrame() {
+        mic.read(readBuff, 0, readBuff.length);
+        Utils.bytesToShorts(readBuff, buff);
+        Utils.adjustVolumeMono(buff, VoicechatClient.CLIENT_CONFIG.microphoneAmplification.get().floatValue());
+    }
+
     private long sequenceNumber = 0L;
 
-    private void sendAudioPacket(byte[] data) {
+    private void sendAudioPacket(short[] data) {
         try {
+            encoder.setPacketLossPercentage(System.currentTimeMillis() - reportedPacketLossTime > LOSS_REPORT_TIMEOUT ? 0 : reportedPacketLoss);
+            double audioLevel = Utils.getHighestAudioLevel(data);
+            // The server wouldn't forward this frame, so it doesn't get a sequence number to not count as lost on the receiving side
+            if (client.isSuppressSilence() && audioLevel < client.getSilenceThreshold()) {
+                return;
+            }
             byte[] encoded = encoder.encode(data);
-            client.sendToServer(new NetworkMessage(new MicPacket(encoded, sequenceNumber++)));
+            client.sendToServer(new NetworkMessage(new MicPacket(encoded, sequenceNumber++, audioLevel)));
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Called when a listener reported the packet loss of this players audio
+     * The highest loss of all listeners is used
+     *
+     * @param percentage the packet loss in percent
+     */
+    public void onPacketLossReport(int percentage) {
+        long time = System.currentTimeMillis();
+        if (percentage >= reportedPacketLoss || time - reportedPacketLossTime > LOSS_REPORT_TIMEOUT) {
+            reportedPacketLoss = percentage;
+            reportedPacketLossTime = time;
+        }
+    }
+
     public TargetDataLine getMic() {
         return mic;
     }
@@ -157,7 +200,7 @@ public class MicThread extends Thread {
         activating = false;
         wasPTT = false;
         deactivationDelay = 0;
-        lastBuff = null;
+        hasLastBuff = false;
     }
 
     public void close() {
@@ -1,15 +1,14 @@
 package de.maxhenkel.voicechat.voice.common;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import javax.annotation.Nullable;
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.UUID;
 
@@ -17,6 +16,25 @@ public class AES {
 
     private static final SecureRandom RANDOM = new SecureRandom();
     private static final String CIPHER = "AES/CBC/PKCS5Padding";
+    private static final int IV_SIZE = 16;
+    private static final int BLOCK_SIZE = 16;
+
+    private static final String AEAD_CIPHER = "AES/GCM/NoPadding";
+    private static final int NONCE_SIZE = 12;
+    public static final int TAG_SIZE = 16;
+
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> createCipher(CIPHER));
+    private static final ThreadLocal<Cipher> AEAD_CIPHERS = ThreadLocal.withInitial(() -> createCipher(AEAD_CIPHER));
+    private static final ThreadLocal<byte[]> IVS = ThreadLocal.withInitial(() -> new byte[IV_SIZE]);
+    private static final ThreadLocal<byte[]> NONCES = ThreadLocal.withInitial(() -> new byte[NONCE_SIZE]);
+
+    private static Cipher createCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to create cipher " + transformation, e);
+        }
+    }
 
     public static byte[] getBytesFromUUID(UUID uuid) {
         ByteBuffer buffer = ByteBuffer.wrap(new byte[16]);
@@ -32,37 +50,121 @@ public class AES {
         return new UUID(most, least);
     }
 
-    private static byte[] generateIV() {
-        byte[] iv = new byte[16];
+    /**
+     * Creates the key for the provided secret
+     * The result should be cached for as long as the secret is valid
+     *
+     * @param secret the secret
+     * @return the key
+     */
+    public static SecretKeySpec createKeySpec(UUID secret) {
+        return new SecretKeySpec(getBytesFromUUID(secret), "AES");
+    }
+
+    /**
+     * @param length the length of the unencrypted data
+     * @return the length of the encrypted payload including the IV
+     */
+    public static int getEncryptedSize(int length) {
+        return IV_SIZE + (length / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    /**
+     * Encrypts the remaining bytes of the data buffer and writes the IV and the encrypted data into the output buffer
+     * This uses a cipher instance and an IV buffer of the current thread, only the parameter spec is allocated
+     *
+     * @param key  the key
+     * @param data the data to encrypt
+     * @param out  the buffer to write the payload into
+     * @return the amount of bytes written
+     */
+    public static int encrypt(SecretKeySpec key, ByteBuffer data, ByteBuffer out) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        byte[] iv = IVS.get();
         RANDOM.nextBytes(iv);
-        return iv;
+        out.put(iv);
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        return IV_SIZE + cipher.doFinal(data, out);
     }
 
-    private static SecretKeySpec createKeySpec(UUID secret) {
-        return new SecretKeySpec(getBytesFromUUID(secret), "AES");
+    /**
+     * Decrypts the remaining bytes of the payload buffer into the output buffer
+     * This uses a cipher instance and an IV buffer of the current thread, only the parameter spec is allocated
+     *
+     * @param key     the key
+     * @param payload the IV and the encrypted data
+     * @param out     the buffer to write the decrypted data into
+     * @return the amount of bytes written
+     */
+    public static int decrypt(SecretKeySpec key, ByteBuffer payload, ByteBuffer out) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        byte[] iv = IVS.get();
+        payload.get(iv);
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        return cipher.doFinal(payload, out);
+    }
+
+    /**
+     * Builds the nonce out of the direction and the packet counter into the nonce buffer of the current thread
+     * Every key has its own counter per direction, so nonces never repeat for the same key
+     */
+    private static byte[] createNonce(int direction, long counter) {
+        byte[] nonce = NONCES.get();
+        nonce[0] = (byte) (direction >> 24);
+        nonce[1] = (byte) (direction >> 16);
+        nonce[2] = (byte) (direction >> 8);
+        nonce[3] = (byte) direction;
+        for (int i = 0; i < 8; i++) {
+            nonce[4 + i] = (byte) (counter >> (56 - i * 8));
+        }
+        return nonce;
     }
 
-    public static byte[] encrypt(UUID secret, byte[] data) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        byte[] iv = generateIV();
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
-        Cipher cipher = Cipher.getInstance(CIPHER);
-        cipher.init(Cipher.ENCRYPT_MODE, createKeySpec(secret), ivSpec);
-        byte[] enc = cipher.doFinal(data);
-        byte[] payload = new byte[iv.length + enc.length];
-        System.arraycopy(iv, 0, payload, 0, iv.length);
-        System.arraycopy(enc, 0, payload, iv.length, enc.length);
-        return payload;
+    /**
+     * Encrypts and authenticates the remaining bytes of the data buffer using AES-GCM
+     * The parameter spec is the only allocation, the JCE has no way to change the nonce of an existing spec
+     *
+     * @param key       the key
+     * @param direction the direction of the packet
+     * @param counter   the packet counter (Must never be reused for the same key and direction)
+     * @param aad       additional data that gets authenticated, but not encrypted
+     * @param aadOffset the offset of the additional data
+     * @param aadLength the length of the additional data
+     * @param data      the data to encrypt
+     * @param out       the buffer to write the encrypted data and the tag into
+     * @return the amount of bytes written
+     */
+    public static int encryptAEAD(SecretKeySpec key, int direction, long counter, @Nullable byte[] aad, int aadOffset, int aadLength, ByteBuffer data, ByteBuffer out) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        Cipher cipher = AEAD_CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, createNonce(direction, counter)));
+        if (aad != null) {
+            cipher.updateAAD(aad, aadOffset, aadLength);
+        }
+        return cipher.doFinal(data, out);
     }
 
-    public static byte[] decrypt(UUID secret, byte[] payload) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        byte[] iv = new byte[16];
-        System.arraycopy(payload, 0, iv, 0, iv.length);
-        byte[] data = new byte[payload.length - iv.length];
-        System.arraycopy(payload, iv.length, data, 0, data.length);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
-        Cipher cipher = Cipher.getInstance(CIPHER);
-        cipher.init(Cipher.DECRYPT_MODE, createKeySpec(secret), ivSpec);
-        return cipher.doFinal(data);
+    /**
+     * Decrypts and verifies the remaining bytes of the payload buffer using AES-GCM
+     * The parameter spec is the only allocation, the JCE has no way to change the nonce of an existing spec
+     *
+     * @param key       the key
+     * @param direction the direction of the packet
+     * @param counter   the packet counter
+     * @param aad       additional data that gets authenticated, but not encrypted
+     * @param aadOffset the offset of the additional data
+     * @param aadLength the length of the additional data
+     * @param payload   the encrypted data and the tag
+     * @param out       the buffer to write the decrypted data into
+     * @return the amount of bytes written
+     * @throws AEADBadTagException if the payload or the additional data was tampered with
+     */
+    public static int decryptAEAD(SecretKeySpec key, int direction, long counter, @Nullable byte[] aad, int aadOffset, int aadLength, ByteBuffer payload, ByteBuffer out) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        Cipher cipher = AEAD_CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, createNonce(direction, counter)));
+        if (aad != null) {
+            cipher.updateAAD(aad, aadOffset, aadLength);
+        }
+        return cipher.doFinal(payload, out);
     }
 
 }
@@ -4,18 +4,46 @@ import net.minecraft.network.FriendlyByteBuf;
 
 public class AuthenticateAckPacket implements Packet<AuthenticateAckPacket> {
 
+    private int protocolVersion;
+    private int playerId;
+
+    public AuthenticateAckPacket(int protocolVersion, int playerId) {
+        this.protocolVersion = protocolVersion;
+        this.playerId = playerId;
+    }
+
     public AuthenticateAckPacket() {
 
     }
 
+    /**
+     * @return the protocol version the server expects from now on
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * @return the session player ID the client uses in the header of its packets or 0 if the server didn't assign one
+     */
+    public int getPlayerId() {
+        return playerId;
+    }
+
     @Override
     public AuthenticateAckPacket fromBytes(FriendlyByteBuf buf) {
-        AuthenticateAckPacket packet = new AuthenticateAckPacket();
-        return packet;
+        if (buf.readableBytes() >= 4) {
+            protocolVersion = buf.readInt();
+        }
+        if (buf.readableBytes() >= 4) {
+            playerId = buf.readInt();
+        }
+        return this;
     }
 
     @Override
     public void toBytes(FriendlyByteBuf buf) {
-
+        buf.writeInt(protocolVersion);
+        buf.writeInt(playerId);
     }
 }
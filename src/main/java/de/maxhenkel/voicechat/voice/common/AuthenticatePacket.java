@@ -8,10 +8,12 @@ public class AuthenticatePacket implements Packet<AuthenticatePacket> {
 
     private UUID playerUUID;
     private UUID secret;
+    private int protocolVersion;
 
-    public AuthenticatePacket(UUID playerUUID, UUID secret) {
+    public AuthenticatePacket(UUID playerUUID, UUID secret, int protocolVersion) {
         this.playerUUID = playerUUID;
         this.secret = secret;
+        this.protocolVersion = protocolVersion;
     }
 
     public AuthenticatePacket() {
@@ -26,17 +28,27 @@ public class AuthenticatePacket implements Packet<AuthenticatePacket> {
         return secret;
     }
 
+    /**
+     * @return the highest protocol version supported by the client and the server
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
     @Override
     public AuthenticatePacket fromBytes(FriendlyByteBuf buf) {
-        AuthenticatePacket packet = new AuthenticatePacket();
-        packet.playerUUID = buf.readUUID();
-        packet.secret = buf.readUUID();
-        return packet;
+        playerUUID = buf.readUUID();
+        secret = buf.readUUID();
+        if (buf.readableBytes() >= 4) {
+            protocolVersion = buf.readInt();
+        }
+        return this;
     }
 
     @Override
     public void toBytes(FriendlyByteBuf buf) {
         buf.writeUUID(playerUUID);
         buf.writeUUID(secret);
+        buf.writeInt(protocolVersion);
     }
 }
@@ -10,7 +10,7 @@ public class KeepAlivePacket implements Packet<KeepAlivePacket> {
 
     @Override
     public KeepAlivePacket fromBytes(FriendlyByteBuf buf) {
-        return new KeepAlivePacket();
+        return this;
     }
 
     @Override
@@ -2,16 +2,31 @@ package de.maxhenkel.voicechat.voice.common;
 
 import net.minecraft.network.FriendlyByteBuf;
 
+import java.util.Arrays;
+
 public class MicPacket implements Packet<MicPacket> {
 
     private byte[] data;
+    private int dataLength;
     private long sequenceNumber;
+    private byte audioLevel;
 
     public MicPacket(byte[] data, long sequenceNumber) {
         this.data = data;
+        this.dataLength = data.length;
         this.sequenceNumber = sequenceNumber;
     }
 
+    /**
+     * @param data           the encoded audio
+     * @param sequenceNumber the sequence number
+     * @param audioLevel     the audio level of the frame in dB
+     */
+    public MicPacket(byte[] data, long sequenceNumber, double audioLevel) {
+        this(data, sequenceNumber);
+        this.audioLevel = Utils.encodeAudioLevel(audioLevel);
+    }
+
     public MicPacket() {
 
     }
@@ -21,25 +36,107 @@ public class MicPacket implements Packet<MicPacket> {
         return 2_000L;
     }
 
+    /**
+     * Copies the audio data if the packet was read into a larger reused buffer
+     * Use {@link #getDataLength()} if only the size is needed
+     *
+     * @return the encoded audio
+     */
     public byte[] getData() {
+        if (data.length == dataLength) {
+            return data;
+        }
+        return Arrays.copyOf(data, dataLength);
+    }
+
+    /**
+     * @return the buffer of the audio data, which can be larger than the audio data
+     */
+    byte[] getDataBuffer() {
         return data;
     }
 
+    public int getDataLength() {
+        return dataLength;
+    }
+
     public long getSequenceNumber() {
         return sequenceNumber;
     }
 
+    /**
+     * @return if the sender attached the audio level of the frame
+     */
+    public boolean hasAudioLevel() {
+        return audioLevel != 0;
+    }
+
+    /**
+     * @return the audio level of the frame in dB
+     */
+    public double getAudioLevel() {
+        return Utils.decodeAudioLevel(audioLevel);
+    }
+
+    byte getEncodedAudioLevel() {
+        return audioLevel;
+    }
+
+    /**
+     * Reads the audio data into the buffer of this packet, so recycled packets only allocate if they receive a larger frame
+     */
+    private void readData(FriendlyByteBuf buf) {
+        int length = buf.readVarInt();
+        if (length < 0 || length > buf.readableBytes()) {
+            throw new IndexOutOfBoundsException("Invalid audio data length " + length);
+        }
+        if (data == null || data.length < length) {
+            data = new byte[length];
+        }
+        buf.readBytes(data, 0, length);
+        dataLength = length;
+    }
+
+    private void writeData(FriendlyByteBuf buf) {
+        buf.writeVarInt(dataLength);
+        buf.writeBytes(data, 0, dataLength);
+    }
+
     @Override
     public MicPacket fromBytes(FriendlyByteBuf buf) {
-        MicPacket soundPacket = new MicPacket();
-        soundPacket.data = buf.readByteArray();
-        soundPacket.sequenceNumber = buf.readLong();
-        return soundPacket;
+        readData(buf);
+        sequenceNumber = buf.readLong();
+        // Older clients don't send the audio level
+        audioLevel = buf.isReadable() ? buf.readByte() : 0;
+        return this;
+    }
+
+    @Override
+    public MicPacket fromBytes(FriendlyByteBuf buf, int protocolVersion) {
+        if (protocolVersion < NetworkMessage.COMPACT_PROTOCOL) {
+            return fromBytes(buf);
+        }
+        readData(buf);
+        sequenceNumber = buf.readVarLong();
+        audioLevel = buf.readByte();
+        return this;
+    }
+
+    @Override
+    public void toBytes(FriendlyByteBuf buf, int protocolVersion) {
+        if (protocolVersion < NetworkMessage.COMPACT_PROTOCOL) {
+            toBytes(buf);
+            return;
+        }
+        writeData(buf);
+        buf.writeVarLong(sequenceNumber);
+        buf.writeByte(audioLevel);
     }
 
     @Override
     public void toBytes(FriendlyByteBuf buf) {
-        buf.writeByteArray(data);
+        writeData(buf);
         buf.writeLong(sequenceNumber);
+        buf.writeByte(audioLevel);
     }
 }
@@ -7,33 +7,111 @@ import io.netty.buffer.Unpooled;
 import net.minecraft.network.FriendlyByteBuf;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.crypto.AEADBadTagException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.UUID;
 
 public class NetworkMessage {
 
-    private final long timestamp;
+    public static final int MAX_PACKET_SIZE = 4096;
+
+    /**
+     * AES-CBC with the secret as part of the encrypted payload
+     */
+    public static final int LEGACY_PROTOCOL = 0;
+    /**
+     * AES-GCM with nonces derived from a packet counter
+     */
+    public static final int AEAD_PROTOCOL = 1;
+    /**
+     * AES-GCM with session player IDs instead of UUIDs and variable length counters and sequence numbers
+     */
+    public static final int COMPACT_PROTOCOL = 2;
+    /**
+     * The latest protocol version supported by this version of the mod
+     */
+    public static final int PROTOCOL_VERSION = COMPACT_PROTOCOL;
+
+    public static final int CLIENT_TO_SERVER = 0;
+    public static final int SERVER_TO_CLIENT = 1;
+
+    /**
+     * Reusable buffer for the plaintext of incoming and outgoing messages
+     */
+    private static final ThreadLocal<ByteBuffer> PLAINTEXT_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_PACKET_SIZE));
+    private static final ThreadLocal<DatagramBuffer> RECEIVE_BUFFER = ThreadLocal.withInitial(DatagramBuffer::new);
+    /**
+     * Reusable wrapper around the plaintext buffer, so reading a packet doesn't allocate a new {@link FriendlyByteBuf}
+     */
+    private static final ThreadLocal<FriendlyByteBuf> PLAINTEXT_READER = ThreadLocal.withInitial(() -> new FriendlyByteBuf(Unpooled.wrappedBuffer(PLAINTEXT_BUFFER.get().array())));
+    private static final ThreadLocal<ObjectPool<NetworkMessage>> MESSAGE_POOL = ThreadLocal.withInitial(() -> new ObjectPool<>(64, () -> new NetworkMessage(0L)));
+
+    private long timestamp;
     private Packet<? extends Packet> packet;
     private SocketAddress address;
+    @Nullable
+    private UUID playerUUID;
+    @Nullable
+    private FriendlyByteBuf body;
+    @Nullable
+    private FriendlyByteBuf compactBody;
+    private boolean bodyWritten;
+    private boolean compactBodyWritten;
 
     public NetworkMessage(Packet<?> packet) {
-        this();
+        this(System.currentTimeMillis());
         this.packet = packet;
     }
 
-    private NetworkMessage() {
-        this.timestamp = System.currentTimeMillis();
+    private NetworkMessage(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Creates a message from the pool of the current thread
+     * The message should be returned with {@link #recycle()} once it was sent
+     *
+     * @param packet the packet
+     * @return the message
+     */
+    public static NetworkMessage obtain(Packet<?> packet) {
+        NetworkMessage message = obtain(System.currentTimeMillis());
+        message.packet = packet;
+        return message;
+    }
+
+    private static NetworkMessage obtain(long timestamp) {
+        NetworkMessage message = MESSAGE_POOL.get().get();
+        message.timestamp = timestamp;
+        return message;
+    }
+
+    /**
+     * Returns the message and its packet to the pools of the current thread
+     * Neither the message nor its packet must be used after this
+     */
+    public void recycle() {
+        if (packet != null) {
+            PacketRegistry.recycle(packet);
+        }
+        packet = null;
+        address = null;
+        playerUUID = null;
+        bodyWritten = false;
+        compactBodyWritten = false;
+        MESSAGE_POOL.get().recycle(this);
     }
 
     @Nonnull
@@ -53,93 +131,439 @@ public class NetworkMessage {
         return address;
     }
 
-    private static final Map<Byte, Class<? extends Packet>> packetRegistry;
+    public static NetworkMessage readPacketClient(DatagramSocket socket, Client client) throws InstantiationException, IOException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        DatagramBuffer buffer = RECEIVE_BUFFER.get();
+        ByteBuffer data = buffer.receive(socket);
+        SocketAddress address = buffer.packet.getSocketAddress();
+        long timestamp = System.currentTimeMillis();
+        int protocolVersion = client.getProtocolVersion();
+        if (protocolVersion >= AEAD_PROTOCOL) {
+            try {
+                long counter = protocolVersion >= COMPACT_PROTOCOL ? readVarLong(data) : data.getLong();
+                NetworkMessage message = readAEAD(address, timestamp, client.getKey(), SERVER_TO_CLIENT, counter, protocolVersion, null, 0, 0, data);
+                acceptCounter(message, client.getReplayWindow(), counter);
+                return message;
+            } catch (AEADBadTagException | IOException e) {
+                // Packets that were sent before the protocol was negotiated, like resent authentication acknowledgements
+                data.position(0);
+            }
+        }
+        return readFromBytes(address, timestamp, client.getSecret(), client.getKey(), data);
+    }
 
-    static {
-        packetRegistry = new HashMap<>();
-        packetRegistry.put((byte) 0, MicPacket.class);
-        packetRegistry.put((byte) 1, SoundPacket.class);
-        packetRegistry.put((byte) 2, AuthenticatePacket.class);
-        packetRegistry.put((byte) 3, AuthenticateAckPacket.class);
-        packetRegistry.put((byte) 4, PingPacket.class);
-        packetRegistry.put((byte) 5, KeepAlivePacket.class);
+    /**
+     * Decodes a datagram that was received by the server
+     *
+     * @param data      the datagram including the player UUID header
+     * @param address   the address the datagram was received from
+     * @param timestamp the time the datagram was received
+     * @param server    the voice chat server
+     * @return the message
+     */
+    public static NetworkMessage readPacketServer(ByteBuffer data, SocketAddress address, long timestamp, Server server) throws InstantiationException, IOException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        ClientConnection compactConnection = server.getConnection(address);
+        if (compactConnection != null && compactConnection.getProtocolVersion() >= COMPACT_PROTOCOL) {
+            int start = data.position();
+            try {
+                return readCompactPacketServer(data, address, timestamp, server, compactConnection);
+            } catch (AEADBadTagException | IOException e) {
+                // Packets that were sent before the protocol was negotiated, like resent authentication requests
+                data.position(start);
+            }
+        }
+        UUID playerID = new UUID(data.getLong(), data.getLong());
+        UUID secret = server.getExistingSecret(playerID);
+        SecretKeySpec key = server.getKey(playerID);
+        if (secret == null || key == null) {
+            throw new InvalidKeyException("Received packet from player without secret");
+        }
+        ClientConnection connection = server.getConnections().get(playerID);
+        NetworkMessage message;
+        // A payload length of zero is never sent by legacy clients, so it marks the AEAD protocol
+        if (data.get(data.position()) == 0) {
+            data.get();
+            // The packet type is authenticated as part of the header, so it can be used to prioritize packets before decrypting them
+            data.get();
+            if (connection == null || connection.getProtocolVersion() < AEAD_PROTOCOL) {
+                throw new InvalidKeyException("Received AEAD packet from client without negotiated protocol");
+            }
+            long counter = data.getLong();
+            message = readAEAD(address, timestamp, key, CLIENT_TO_SERVER, counter, connection.getProtocolVersion(), data.array(), data.arrayOffset(), 18, data);
+            acceptCounter(message, connection.getReplayWindow(), counter);
+        } else {
+            int length = readVarInt(data);
+            if (length > data.remaining()) {
+                throw new IOException("Invalid payload length");
+            }
+            data.limit(data.position() + length);
+            message = readFromBytes(address, timestamp, secret, key, data);
+            if (connection != null && connection.getProtocolVersion() >= AEAD_PROTOCOL && !(message.packet instanceof AuthenticatePacket)) {
+                message.recycle();
+                throw new InvalidKeyException("Received legacy packet from client with negotiated AEAD protocol");
+            }
+        }
+        message.playerUUID = playerID;
+        return message;
     }
 
-    public static NetworkMessage readPacketClient(DatagramSocket socket, Client client) throws IllegalAccessException, InstantiationException, IOException, InvalidAlgorithmParameterException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
-        socket.receive(packet);
-        byte[] data = new byte[packet.getLength()];
-        System.arraycopy(packet.getData(), packet.getOffset(), data, 0, packet.getLength());
-        return readFromBytes(packet.getSocketAddress(), client.getSecret(), data);
+    /**
+     * Decodes a datagram with the compact header of a client that is identified by its address
+     *
+     * @param data       the datagram starting with the session player ID
+     * @param address    the address the datagram was received from
+     * @param timestamp  the time the datagram was received
+     * @param server     the voice chat server
+     * @param connection the connection of the address
+     * @return the message
+     */
+    private static NetworkMessage readCompactPacketServer(ByteBuffer data, SocketAddress address, long timestamp, Server server, ClientConnection connection) throws InstantiationException, IOException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        int start = data.position();
+        if (readVarInt(data) != connection.getPlayerId()) {
+            throw new IOException("Player ID does not match the address");
+        }
+        // The packet type is authenticated as part of the header, so it can be used to prioritize packets before decrypting them
+        data.get();
+        long counter = readVarLong(data);
+        SecretKeySpec key = server.getKey(connection.getPlayerUUID());
+        if (key == null) {
+            throw new InvalidKeyException("Received packet from player without secret");
+        }
+        NetworkMessage message = readAEAD(address, timestamp, key, CLIENT_TO_SERVER, counter, connection.getProtocolVersion(), data.array(), data.arrayOffset() + start, data.position() - start, data);
+        acceptCounter(message, connection.getReplayWindow(), counter);
+        message.playerUUID = connection.getPlayerUUID();
+        return message;
     }
 
-    public static NetworkMessage readPacketServer(DatagramSocket socket, Server server) throws IllegalAccessException, InstantiationException, IOException, InvalidAlgorithmParameterException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
-        socket.receive(packet);
-        byte[] data = new byte[packet.getLength()];
-        System.arraycopy(packet.getData(), packet.getOffset(), data, 0, packet.getLength());
-        FriendlyByteBuf b = new FriendlyByteBuf(Unpooled.wrappedBuffer(data));
-        UUID playerID = b.readUUID();
-        return readFromBytes(packet.getSocketAddress(), server.getSecret(playerID), b.readByteArray());
+    /**
+     * Marks the counter of a decrypted message as received
+     * The counter is only checked after decrypting, so forged packets can't move the replay window.
+     *
+     * @param message      the decrypted message, which is returned to the pool if it is rejected
+     * @param replayWindow the replay window of the sender
+     * @param counter      the counter of the message
+     * @throws InvalidKeyException if the message was already received
+     */
+    static void acceptCounter(NetworkMessage message, ReplayWindow replayWindow, long counter) throws InvalidKeyException {
+        if (!replayWindow.accept(counter)) {
+            message.recycle();
+            throw new InvalidKeyException("Received replayed packet");
+        }
     }
 
-    private static NetworkMessage readFromBytes(SocketAddress socketAddress, UUID secret, byte[] encryptedPayload) throws InstantiationException, IllegalAccessException, InvalidAlgorithmParameterException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        byte[] decrypt = AES.decrypt(secret, encryptedPayload);
-        FriendlyByteBuf buffer = new FriendlyByteBuf(Unpooled.wrappedBuffer(decrypt));
-        UUID readSecret = buffer.readUUID();
+    static NetworkMessage readFromBytes(SocketAddress socketAddress, long timestamp, UUID secret, SecretKeySpec key, ByteBuffer encryptedPayload) throws InstantiationException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        ByteBuffer decrypted = PLAINTEXT_BUFFER.get();
+        decrypted.clear();
+        AES.decrypt(key, encryptedPayload, decrypted);
+        decrypted.flip();
 
-        if (!secret.equals(readSecret)) {
+        if (decrypted.getLong() != secret.getMostSignificantBits() || decrypted.getLong() != secret.getLeastSignificantBits()) {
             throw new InvalidKeyException("Secrets do not match");
         }
 
+        return readPacket(socketAddress, timestamp, LEGACY_PROTOCOL, decrypted);
+    }
+
+    static NetworkMessage readAEAD(SocketAddress socketAddress, long timestamp, SecretKeySpec key, int direction, long counter, int protocolVersion, @Nullable byte[] aad, int aadOffset, int aadLength, ByteBuffer encryptedPayload) throws InstantiationException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        ByteBuffer decrypted = PLAINTEXT_BUFFER.get();
+        decrypted.clear();
+        AES.decryptAEAD(key, direction, counter, aad, aadOffset, aadLength, encryptedPayload, decrypted);
+        decrypted.flip();
+        return readPacket(socketAddress, timestamp, protocolVersion, decrypted);
+    }
+
+    /**
+     * Reads the packet type and the packet from the plaintext
+     * The message and the packet are taken from the pools of the current thread
+     *
+     * @param decrypted the plaintext, which has to be backed by an array
+     */
+    static NetworkMessage readPacket(SocketAddress socketAddress, long timestamp, int protocolVersion, ByteBuffer decrypted) throws InstantiationException {
+        FriendlyByteBuf buffer = PLAINTEXT_READER.get();
+        if (buffer.array() != decrypted.array()) {
+            buffer = new FriendlyByteBuf(Unpooled.wrappedBuffer(decrypted.array()));
+            PLAINTEXT_READER.set(buffer);
+        }
+        buffer.setIndex(decrypted.arrayOffset() + decrypted.position(), decrypted.arrayOffset() + decrypted.limit());
         byte packetType = buffer.readByte();
-        Class<? extends Packet> packetClass = packetRegistry.get(packetType);
-        if (packetClass == null) {
+        Packet<?> p = PacketRegistry.create(packetType);
+        if (p == null) {
             throw new InstantiationException("Could not find packet with ID " + packetType);
         }
-        Packet<? extends Packet<?>> p = packetClass.newInstance();
 
-        NetworkMessage message = new NetworkMessage();
+        Packet<?> packet;
+        try {
+            packet = p.fromBytes(buffer, protocolVersion);
+        } catch (RuntimeException e) {
+            PacketRegistry.recycle(p);
+            throw e;
+        }
+
+        NetworkMessage message = obtain(timestamp);
         message.address = socketAddress;
-        message.packet = p.fromBytes(buffer);
+        message.packet = packet;
 
         return message;
     }
 
+    /**
+     * Checks if a datagram received by the server contains voice data without decrypting it
+     * This is only possible for the AEAD protocols, since legacy packets don't have the packet type in their header.
+     * Voice packets of legacy clients are therefore queued as control packets, the control lane never drops them and the TTL still applies after decrypting.
+     *
+     * @param datagram the datagram including the player UUID or session player ID header
+     * @param compact  if the sender negotiated the compact protocol
+     * @return if the datagram contains a {@link MicPacket}
+     */
+    public static boolean isMediaPacket(ByteBuffer datagram, boolean compact) {
+        int start = datagram.position();
+        if (compact) {
+            // Skipping the session player ID
+            for (int i = start; i < datagram.limit() - 1 && i < start + 5; i++) {
+                if ((datagram.get(i) & 0x80) == 0) {
+                    return PacketRegistry.isType(datagram.get(i + 1), MicPacket.class);
+                }
+            }
+            return false;
+        }
+        if (datagram.remaining() < 18 || datagram.get(start + 16) != 0) {
+            return false;
+        }
+        return PacketRegistry.isType(datagram.get(start + 17), MicPacket.class);
+    }
+
+    /**
+     * Resolves the sender by the player UUID of the packet header and validates it against the address of the packet.
+     * Falls back to the address index of the server if the message has no player UUID.
+     *
+     * @param server the voice chat server
+     * @return the UUID of the sender or null if the sender is not connected
+     */
+    @Nullable
     public UUID getSender(Server server) {
-        return server.getConnections().values().stream().filter(connection -> connection.getAddress().equals(address)).map(ClientConnection::getPlayerUUID).findAny().orElse(null);
+        ClientConnection connection;
+        if (playerUUID != null) {
+            connection = server.getConnections().get(playerUUID);
+        } else {
+            connection = server.getConnection(address);
+        }
+        if (connection == null || !connection.getAddress().equals(address)) {
+            return null;
+        }
+        return connection.getPlayerUUID();
     }
 
-    private static byte getPacketType(Packet<? extends Packet> packet) {
-        for (Map.Entry<Byte, Class<? extends Packet>> entry : packetRegistry.entrySet()) {
-            if (packet.getClass().equals(entry.getValue())) {
-                return entry.getKey();
+    /**
+     * Serializes the packet type and the packet
+     * This is only done once per message and packet format, so sending the same message to multiple recipients only repeats the encryption.
+     * The buffers are kept when the message gets recycled.
+     *
+     * @param protocolVersion the protocol version of the receiver
+     * @return the serialized packet
+     */
+    FriendlyByteBuf getBody(int protocolVersion) {
+        boolean compact = protocolVersion >= COMPACT_PROTOCOL;
+        if (compact ? compactBodyWritten : bodyWritten) {
+            return compact ? compactBody : body;
+        }
+        byte type = PacketRegistry.getId(packet);
+        if (type < 0) {
+            throw new IllegalArgumentException("Packet type not found");
+        }
+        FriendlyByteBuf buffer = compact ? compactBody : body;
+        if (buffer == null) {
+            buffer = new FriendlyByteBuf(Unpooled.buffer());
+        }
+        buffer.clear();
+        buffer.writeByte(type);
+        packet.toBytes(buffer, protocolVersion);
+        if (compact) {
+            compactBody = buffer;
+            compactBodyWritten = true;
+        } else {
+            body = buffer;
+            bodyWritten = true;
+        }
+        return buffer;
+    }
+
+    private static void putBody(ByteBuffer plaintext, FriendlyByteBuf body) {
+        plaintext.put(body.array(), body.arrayOffset() + body.readerIndex(), body.readableBytes());
+    }
+
+    /**
+     * Writes the player UUID and the encrypted payload in the negotiated protocol of the client into the provided buffer
+     *
+     * @param client the client
+     * @param out    the buffer to write to
+     * @return the amount of bytes written
+     */
+    public int writeClient(Client client, ByteBuffer out) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        int start = out.position();
+        int protocolVersion = client.getProtocolVersion();
+        if (protocolVersion >= COMPACT_PROTOCOL) {
+            // The server identifies the client by its address, the player ID just confirms it
+            writeVarInt(out, client.getPlayerId());
+            out.put(getBody(protocolVersion).getByte(0));
+            long counter = client.nextPacketCounter();
+            writeVarLong(out, counter);
+            writeAEAD(client.getKey(), CLIENT_TO_SERVER, counter, protocolVersion, out.array(), out.arrayOffset() + start, out.position() - start, out);
+            return out.position() - start;
+        }
+        out.putLong(client.getPlayerUUID().getMostSignificantBits());
+        out.putLong(client.getPlayerUUID().getLeastSignificantBits());
+        if (protocolVersion >= AEAD_PROTOCOL) {
+            out.put((byte) 0);
+            out.put(getBody(protocolVersion).getByte(0));
+            long counter = client.nextPacketCounter();
+            out.putLong(counter);
+            writeAEAD(client.getKey(), CLIENT_TO_SERVER, counter, protocolVersion, out.array(), out.arrayOffset() + start, 18, out);
+        } else {
+            writeVarInt(out, AES.getEncryptedSize(16 + getBody(protocolVersion).readableBytes()));
+            write(client.getSecret(), client.getKey(), out);
+        }
+        return out.position() - start;
+    }
+
+    /**
+     * Writes the encrypted payload in the provided protocol into the provided buffer
+     *
+     * @param server          the server
+     * @param connection      the receiving connection
+     * @param protocolVersion the protocol version
+     * @param out             the buffer to write to
+     * @return the amount of bytes written
+     */
+    public int writeServer(Server server, ClientConnection connection, int protocolVersion, ByteBuffer out) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        int start = out.position();
+        UUID playerUUID = connection.getPlayerUUID();
+        UUID secret = server.getExistingSecret(playerUUID);
+        SecretKeySpec key = server.getKey(playerUUID);
+        if (secret == null || key == null) {
+            throw new InvalidKeyException("Sending packet to player without secret");
+        }
+        if (protocolVersion >= AEAD_PROTOCOL) {
+            long counter = connection.nextPacketCounter();
+            if (protocolVersion >= COMPACT_PROTOCOL) {
+                writeVarLong(out, counter);
+            } else {
+                out.putLong(counter);
             }
+            writeAEAD(key, SERVER_TO_CLIENT, counter, protocolVersion, null, 0, 0, out);
+        } else {
+            write(secret, key, out);
         }
-        return -1;
+        return out.position() - start;
     }
 
-    public byte[] writeClient(Client client) throws InvalidAlgorithmParameterException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        byte[] payload = write(client.getSecret());
-        FriendlyByteBuf buffer = new FriendlyByteBuf(Unpooled.buffer(payload.length + 32));
-        buffer.writeUUID(client.getPlayerUUID());
-        buffer.writeByteArray(payload);
-        return buffer.array();
+    /**
+     * Writes the encrypted payload in the legacy protocol into the provided buffer
+     *
+     * @param secret the secret of the receiving player
+     * @param key    the key of the receiving player
+     * @param out    the buffer to write to
+     * @return the amount of bytes written
+     */
+    public int write(UUID secret, SecretKeySpec key, ByteBuffer out) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        FriendlyByteBuf body = getBody(LEGACY_PROTOCOL);
+        ByteBuffer plaintext = PLAINTEXT_BUFFER.get();
+        plaintext.clear();
+        plaintext.putLong(secret.getMostSignificantBits());
+        plaintext.putLong(secret.getLeastSignificantBits());
+        putBody(plaintext, body);
+        plaintext.flip();
+        return AES.encrypt(key, plaintext, out);
     }
 
-    public byte[] write(UUID secret) throws InvalidAlgorithmParameterException, NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException, BadPaddingException, InvalidKeyException {
-        FriendlyByteBuf buffer = new FriendlyByteBuf(Unpooled.buffer());
-        buffer.writeUUID(secret);
+    /**
+     * Writes the payload encrypted with AES-GCM into the provided buffer
+     * The secret is not part of the payload, since the authentication tag already proves the knowledge of the key
+     *
+     * @return the amount of bytes written
+     */
+    int writeAEAD(SecretKeySpec key, int direction, long counter, int protocolVersion, @Nullable byte[] aad, int aadOffset, int aadLength, ByteBuffer out) throws InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+        FriendlyByteBuf body = getBody(protocolVersion);
+        ByteBuffer plaintext = PLAINTEXT_BUFFER.get();
+        plaintext.clear();
+        putBody(plaintext, body);
+        plaintext.flip();
+        return AES.encryptAEAD(key, direction, counter, aad, aadOffset, aadLength, plaintext, out);
+    }
 
-        byte type = getPacketType(packet);
-        if (type < 0) {
-            throw new IllegalArgumentException("Packet type not found");
+    static int readVarInt(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int i = 0; i < 5; i++) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << (i * 7);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
         }
+        throw new IOException("VarInt too big");
+    }
 
-        buffer.writeByte(type);
-        packet.toBytes(buffer);
+    static void writeVarInt(ByteBuffer buffer, int value) {
+        while ((value & -128) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long readVarLong(ByteBuffer buffer) throws IOException {
+        long value = 0L;
+        for (int i = 0; i < 10; i++) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << (i * 7);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("VarLong too big");
+    }
+
+    static void writeVarLong(ByteBuffer buffer, long value) {
+        while ((value & -128L) != 0L) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
 
-        return AES.encrypt(secret, buffer.array());
+    /**
+     * A reusable datagram packet and a byte buffer backed by the same array
+     */
+    public static class DatagramBuffer {
+        private final ByteBuffer buffer;
+        private final DatagramPacket packet;
+
+        public DatagramBuffer() {
+            buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+            packet = new DatagramPacket(buffer.array(), buffer.capacity());
+        }
+
+        public ByteBuffer receive(DatagramSocket socket) throws IOException {
+            packet.setData(buffer.array(), 0, buffer.capacity());
+            socket.receive(packet);
+            buffer.clear();
+            buffer.limit(packet.getLength());
+            return buffer;
+        }
+
+        public ByteBuffer getBuffer() {
+            buffer.clear();
+            return buffer;
+        }
+
+        public void send(DatagramSocket socket, SocketAddress address) throws IOException {
+            packet.setData(buffer.array(), 0, buffer.position());
+            packet.setSocketAddress(address);
+            socket.send(packet);
+        }
+
+        public void send(DatagramChannel channel, SocketAddress address) throws IOException {
+            buffer.flip();
+            channel.send(buffer, address);
+        }
     }
 
 }
@@ -0,0 +1,54 @@
+package de.maxhenkel.voicechat.voice.common;
+
+import java.util.function.Supplier;
+
+/**
+ * A bounded stack of reusable objects
+ * This must only be used by a single thread
+ */
+public class ObjectPool<T> {
+
+    private final Supplier<T> factory;
+    private final Object[] objects;
+    private int size;
+
+    /**
+     * @param capacity the maximum amount of objects that are kept for reuse
+     * @param factory  creates new objects if the pool is empty
+     */
+    public ObjectPool(int capacity, Supplier<T> factory) {
+        this.factory = factory;
+        this.objects = new Object[capacity];
+    }
+
+    /**
+     * @return a recycled object or a new one if there are no recycled objects
+     */
+    @SuppressWarnings("unchecked")
+    public T get() {
+        if (size <= 0) {
+            return factory.get();
+        }
+        size--;
+        T object = (T) objects[size];
+        objects[size] = null;
+        return object;
+    }
+
+    /**
+     * Returns the object to the pool
+     * The object is left to the garbage collector if the pool is full
+     *
+     * @param object the object that is not used anymore
+     */
+    public void recycle(T object) {
+        if (size < objects.length) {
+            objects[size++] = object;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+}
@@ -5,15 +5,23 @@ import de.maxhenkel.opus4j.Opus;
 import de.maxhenkel.voicechat.Voicechat;
 
 import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
 
 public class OpusDecoder {
 
+    /**
+     * The longest frame Opus can decode in milliseconds
+     */
+    private static final int MAX_FRAME_DURATION = 120;
+
     protected PointerByReference opusDecoder;
     protected int sampleRate;
     protected int frameSize;
     protected int maxPayloadSize;
+    protected ShortBuffer decodedBuffer;
     protected boolean closed;
 
     public OpusDecoder(int sampleRate, int frameSize, int maxPayloadSize) {
@@ -25,36 +33,86 @@ public class OpusDecoder {
         if (error.get() != Opus.OPUS_OK && opusDecoder == null) {
             throw new IllegalStateException("Opus decoder error " + error.get());
         }
+        // Frames of other players can be longer than our own frames
+        decodedBuffer = ByteBuffer.allocateDirect(sampleRate / 1000 * MAX_FRAME_DURATION * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
         Voicechat.LOGGER.info("Initializing Opus decoder with sample rate " + sampleRate + " Hz, frame size " + frameSize + " bytes and max payload size " + maxPayloadSize + " bytes");
     }
 
     public byte[] decode(@Nullable byte[] data) {
+        int length = decode(data, decodedBuffer);
+        byte[] audio = new byte[length * 2];
+        for (int i = 0; i < length; i++) {
+            short sample = decodedBuffer.get(i);
+            audio[i * 2] = (byte) sample;
+            audio[i * 2 + 1] = (byte) (sample >> 8);
+        }
+        return audio;
+    }
+
+    /**
+     * Decodes a frame into the provided array
+     * Uses packet loss concealment if the data is null or empty
+     *
+     * @param data    the encoded audio
+     * @param samples the array to write the decoded mono samples to (Needs to hold at least a single frame)
+     * @return the amount of decoded samples
+     */
+    public int decode(@Nullable byte[] data, short[] samples) {
+        return decode(data, samples, false);
+    }
+
+    /**
+     * Decodes a frame into the provided array
+     *
+     * @param data    the encoded audio
+     * @param samples the array to write the decoded mono samples to (Needs to hold at least a single frame)
+     * @param fec     if the frame before the provided data should be recovered from its forward error correction data
+     * @return the amount of decoded samples
+     */
+    public int decode(@Nullable byte[] data, short[] samples, boolean fec) {
+        int result = decode(data, decodedBuffer, fec);
+        decodedBuffer.get(samples, 0, Math.min(result, samples.length));
+        return result;
+    }
+
+    /**
+     * Decodes a frame into the provided buffer without any copying
+     * The buffer should be a direct buffer, otherwise JNA has to copy it from native memory
+     * Uses packet loss concealment if the data is null or empty
+     *
+     * @param data    the encoded audio
+     * @param samples the buffer to write the decoded mono samples to, starting at position 0
+     * @return the amount of decoded samples, the limit of the buffer is set to it
+     */
+    public int decode(@Nullable byte[] data, ShortBuffer samples) {
+        return decode(data, samples, false);
+    }
+
+    /**
+     * Decodes a frame into the provided buffer without any copying
+     *
+     * @param data    the encoded audio
+     * @param samples the buffer to write the decoded mono samples to, starting at position 0
+     * @param fec     if the frame before the provided data should be recovered from its forward error correction data
+     * @return the amount of decoded samples, the limit of the buffer is set to it
+     */
+    public int decode(@Nullable byte[] data, ShortBuffer samples, boolean fec) {
         if (closed) {
             throw new IllegalStateException("Trying to decode with a closed decoder");
         }
+        samples.clear();
         int result;
-        ShortBuffer decoded = ShortBuffer.allocate(4096);
         if (data == null || data.length == 0) {
-            result = Opus.INSTANCE.opus_decode(opusDecoder, null, 0, decoded, frameSize / 2, 0);
+            result = Opus.INSTANCE.opus_decode(opusDecoder, null, 0, samples, samples.remaining(), 0);
         } else {
-            result = Opus.INSTANCE.opus_decode(opusDecoder, data, data.length, decoded, frameSize / 2, 0);
+            result = Opus.INSTANCE.opus_decode(opusDecoder, data, data.length, samples, samples.remaining(), fec ? 1 : 0);
         }
 
         if (result < 0) {
             throw new RuntimeException("Failed to decode audio data");
         }
-
-        short[] audio = new short[result];
-        decoded.get(audio);
-
-        byte[] outData = new byte[audio.length * 2];
-
-        for (int i = 0; i < audio.length; i++) {
-            byte[] split = Utils.shortToBytes(audio[i]);
-            outData[i * 2] = split[0];
-            outData[i * 2 + 1] = split[1];
-        }
-        return outData;
+        samples.limit(result);
+        return result;
     }
 
     public boolean isClosed() {
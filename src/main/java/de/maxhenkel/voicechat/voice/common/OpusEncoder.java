@@ -3,6 +3,7 @@ package de.maxhenkel.voicechat.voice.common;
 import com.sun.jna.ptr.PointerByReference;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
 
@@ -10,10 +11,21 @@ import de.maxhenkel.opus4j.Opus;
 
 public class OpusEncoder {
 
+    private static final int OPUS_AUTO = -1000;
+    private static final int OPUS_SET_BITRATE_REQUEST = 4002;
+    private static final int OPUS_SET_VBR_REQUEST = 4006;
+    private static final int OPUS_SET_COMPLEXITY_REQUEST = 4010;
+    private static final int OPUS_SET_INBAND_FEC_REQUEST = 4012;
+    private static final int OPUS_SET_PACKET_LOSS_PERC_REQUEST = 4014;
+    private static final int OPUS_SET_DTX_REQUEST = 4016;
+
     protected PointerByReference opusEncoder;
     protected int sampleRate;
     protected int frameSize;
     protected int maxPayloadSize;
+    protected ShortBuffer rawBuffer;
+    protected ByteBuffer encodedBuffer;
+    protected int packetLossPercentage;
 
     public OpusEncoder(int sampleRate, int frameSize, int maxPayloadSize, int application) {
         this.sampleRate = sampleRate;
@@ -24,27 +36,92 @@ public class OpusEncoder {
         if (error.get() != Opus.OPUS_OK && opusEncoder == null) {
             throw new IllegalStateException("Opus encoder error " + error.get());
         }
+        // Adds redundant data of the previous frame, so the receiver can recover single lost packets
+        Opus.INSTANCE.opus_encoder_ctl(opusEncoder, OPUS_SET_INBAND_FEC_REQUEST, 1);
+        rawBuffer = ByteBuffer.allocateDirect(frameSize).order(ByteOrder.nativeOrder()).asShortBuffer();
+        encodedBuffer = ByteBuffer.allocateDirect(maxPayloadSize);
     }
 
     public byte[] encode(byte[] rawAudio) {
-        ShortBuffer nonEncodedBuffer = ShortBuffer.allocate(rawAudio.length / 2);
-        ByteBuffer encoded = ByteBuffer.allocate(maxPayloadSize);
-        for (int i = 0; i < rawAudio.length; i += 2) {
-            short toShort = Utils.bytesToShort(rawAudio[i], rawAudio[i + 1]);
-
-            nonEncodedBuffer.put(toShort);
+        rawBuffer.clear();
+        for (int i = 0; i + 1 < rawAudio.length && rawBuffer.hasRemaining(); i += 2) {
+            rawBuffer.put(Utils.bytesToShort(rawAudio[i], rawAudio[i + 1]));
         }
-        nonEncodedBuffer.flip();
+        rawBuffer.flip();
+        return encodeToArray();
+    }
+
+    /**
+     * Encodes a frame of mono samples
+     *
+     * @param samples the samples
+     * @return the encoded audio
+     */
+    public byte[] encode(short[] samples) {
+        rawBuffer.clear();
+        rawBuffer.put(samples, 0, Math.min(samples.length, rawBuffer.capacity()));
+        rawBuffer.flip();
+        return encodeToArray();
+    }
+
+    private byte[] encodeToArray() {
+        int result = encode(rawBuffer, encodedBuffer);
+        byte[] audio = new byte[result];
+        encodedBuffer.get(audio);
+        return audio;
+    }
 
-        int result = Opus.INSTANCE.opus_encode(opusEncoder, nonEncodedBuffer, frameSize / 2, encoded, encoded.capacity());
+    /**
+     * Encodes a frame of mono samples without any copying
+     * Both buffers should be direct buffers, otherwise JNA has to copy them to native memory
+     *
+     * @param samples the samples, starting at position 0
+     * @param encoded the buffer to write the encoded audio to, position 0 to the limit is used
+     * @return the size of the encoded audio, the limit of the encoded buffer is set to it
+     */
+    public int encode(ShortBuffer samples, ByteBuffer encoded) {
+        encoded.clear();
+        int result = Opus.INSTANCE.opus_encode(opusEncoder, samples, frameSize / 2, encoded, encoded.remaining());
 
         if (result < 0) {
             throw new RuntimeException("Failed to encode audio data");
         }
 
-        byte[] audio = new byte[result];
-        encoded.get(audio);
-        return audio;
+        encoded.limit(result);
+        return result;
+    }
+
+    /**
+     * Configures the encoder
+     *
+     * @param bitrate    the bitrate in bits per second or 0 to let the encoder choose
+     * @param complexity the computational complexity (0 - 10)
+     * @param vbr        if variable bitrate should be used
+     * @param dtx        if silence should be sent as minimal packets (Discontinuous transmission)
+     */
+    public void configure(int bitrate, int complexity, boolean vbr, boolean dtx) {
+        Opus.INSTANCE.opus_encoder_ctl(opusEncoder, OPUS_SET_BITRATE_REQUEST, bitrate <= 0 ? OPUS_AUTO : bitrate);
+        Opus.INSTANCE.opus_encoder_ctl(opusEncoder, OPUS_SET_COMPLEXITY_REQUEST, Math.max(0, Math.min(complexity, 10)));
+        Opus.INSTANCE.opus_encoder_ctl(opusEncoder, OPUS_SET_VBR_REQUEST, vbr ? 1 : 0);
+        Opus.INSTANCE.opus_encoder_ctl(opusEncoder, OPUS_SET_DTX_REQUEST, dtx ? 1 : 0);
+    }
+
+    /**
+     * Sets the expected packet loss, the encoder only adds forward error correction data if this is above zero
+     *
+     * @param percentage the packet loss in percent
+     */
+    public void setPacketLossPercentage(int percentage) {
+        percentage = Math.max(0, Math.min(percentage, 100));
+        if (percentage == packetLossPercentage) {
+            return;
+        }
+        packetLossPercentage = percentage;
+        Opus.INSTANCE.opus_encoder_ctl(opusEncoder, OPUS_SET_PACKET_LOSS_PERC_REQUEST, percentage);
+    }
+
+    public int getPacketLossPercentage() {
+        return packetLossPercentage;
     }
 
     public void close() {
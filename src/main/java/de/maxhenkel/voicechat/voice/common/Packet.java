@@ -8,6 +8,27 @@ public interface Packet<T extends Packet> {
 
     void toBytes(FriendlyByteBuf buf);
 
+    /**
+     * Reads the packet in the format of the provided protocol version
+     *
+     * @param buf             the buffer
+     * @param protocolVersion the protocol version of the sender
+     * @return the packet
+     */
+    default T fromBytes(FriendlyByteBuf buf, int protocolVersion) {
+        return fromBytes(buf);
+    }
+
+    /**
+     * Writes the packet in the format of the provided protocol version
+     *
+     * @param buf             the buffer
+     * @param protocolVersion the protocol version of the receiver
+     */
+    default void toBytes(FriendlyByteBuf buf, int protocolVersion) {
+        toBytes(buf);
+    }
+
     default long getTTL() {
         return 10_000L;
     }
@@ -0,0 +1,50 @@
+package de.maxhenkel.voicechat.voice.common;
+
+import net.minecraft.network.FriendlyByteBuf;
+
+import java.util.UUID;
+
+/**
+ * Reports the packet loss of the audio of a player
+ * Sent by the client with the UUID of the talking player and relayed by the server to the talking player with the UUID of the listener
+ */
+public class PacketLossPacket implements Packet<PacketLossPacket> {
+
+    private UUID player;
+    private int lossPercentage;
+
+    public PacketLossPacket(UUID player, int lossPercentage) {
+        this.player = player;
+        this.lossPercentage = lossPercentage;
+    }
+
+    public PacketLossPacket() {
+
+    }
+
+    public UUID getPlayer() {
+        return player;
+    }
+
+    public int getLossPercentage() {
+        return lossPercentage;
+    }
+
+    @Override
+    public long getTTL() {
+        return 2_000L;
+    }
+
+    @Override
+    public PacketLossPacket fromBytes(FriendlyByteBuf buf) {
+        player = buf.readUUID();
+        lossPercentage = Math.max(0, Math.min(buf.readByte(), 100));
+        return this;
+    }
+
+    @Override
+    public void toBytes(FriendlyByteBuf buf) {
+        buf.writeUUID(player);
+        buf.writeByte(lossPercentage);
+    }
+}
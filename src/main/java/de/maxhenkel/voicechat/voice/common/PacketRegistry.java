@@ -0,0 +1,124 @@
+package de.maxhenkel.voicechat.voice.common;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The packet types of the voice chat protocol
+ * Packets are created by the factory of their type and read into the created instance, so reading a packet doesn't need reflection.
+ * Packets of pooled types are taken from a pool of the current thread and can be returned to it with {@link #recycle(Packet)}.
+ */
+public class PacketRegistry {
+
+    private static final int POOL_SIZE = 64;
+
+    private static final PacketType<?>[] TYPES = new PacketType[256];
+    private static final Map<Class<?>, PacketType<?>> CLASSES = new HashMap<>();
+
+    static {
+        register(0, MicPacket.class, MicPacket::new, true);
+        register(1, SoundPacket.class, SoundPacket::new, true);
+        register(2, AuthenticatePacket.class, AuthenticatePacket::new, false);
+        register(3, AuthenticateAckPacket.class, AuthenticateAckPacket::new, false);
+        register(4, PingPacket.class, PingPacket::new, false);
+        register(5, KeepAlivePacket.class, KeepAlivePacket::new, false);
+        register(6, PacketLossPacket.class, PacketLossPacket::new, false);
+    }
+
+    private static <T extends Packet<T>> void register(int id, Class<T> packetClass, Supplier<T> factory, boolean pooled) {
+        PacketType<T> type = new PacketType<>((byte) id, factory, pooled);
+        TYPES[id] = type;
+        CLASSES.put(packetClass, type);
+    }
+
+    /**
+     * @param id the packet type
+     * @return a new or recycled packet of the provided type or null if the type doesn't exist
+     */
+    @Nullable
+    public static Packet<?> create(byte id) {
+        PacketType<?> type = TYPES[id & 0xFF];
+        if (type == null) {
+            return null;
+        }
+        return type.create();
+    }
+
+    /**
+     * @param packetClass the packet class
+     * @return a new or recycled packet of the provided class
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Packet<T>> T create(Class<T> packetClass) {
+        PacketType<T> type = (PacketType<T>) CLASSES.get(packetClass);
+        if (type == null) {
+            throw new IllegalArgumentException("Packet type not found");
+        }
+        return type.create();
+    }
+
+    /**
+     * @param packet the packet
+     * @return the packet type or -1 if the packet is not registered
+     */
+    public static byte getId(Packet<?> packet) {
+        PacketType<?> type = CLASSES.get(packet.getClass());
+        if (type == null) {
+            return -1;
+        }
+        return type.id;
+    }
+
+    /**
+     * @param id          the packet type
+     * @param packetClass the packet class
+     * @return if the packet type belongs to the provided class
+     */
+    public static boolean isType(byte id, Class<? extends Packet<?>> packetClass) {
+        PacketType<?> type = TYPES[id & 0xFF];
+        return type != null && type == CLASSES.get(packetClass);
+    }
+
+    /**
+     * Returns the packet to the pool of the current thread if its type is pooled
+     * The packet must not be used after this
+     *
+     * @param packet the packet
+     */
+    public static void recycle(Packet<?> packet) {
+        PacketType<?> type = CLASSES.get(packet.getClass());
+        if (type != null) {
+            type.recycle(packet);
+        }
+    }
+
+    private static class PacketType<T extends Packet<T>> {
+        private final byte id;
+        private final Supplier<T> factory;
+        @Nullable
+        private final ThreadLocal<ObjectPool<T>> pool;
+
+        public PacketType(byte id, Supplier<T> factory, boolean pooled) {
+            this.id = id;
+            this.factory = factory;
+            this.pool = pooled ? ThreadLocal.withInitial(() -> new ObjectPool<>(POOL_SIZE, factory)) : null;
+        }
+
+        public T create() {
+            if (pool == null) {
+                return factory.get();
+            }
+            return pool.get().get();
+        }
+
+        @SuppressWarnings("unchecked")
+        public void recycle(Packet<?> packet) {
+            if (pool != null) {
+                pool.get().recycle((T) packet);
+            }
+        }
+    }
+
+}
@@ -28,10 +28,9 @@ public class PingPacket implements Packet<PingPacket> {
 
     @Override
     public PingPacket fromBytes(FriendlyByteBuf buf) {
-        PingPacket soundPacket = new PingPacket();
-        soundPacket.id = buf.readUUID();
-        soundPacket.timestamp = buf.readLong();
-        return soundPacket;
+        id = buf.readUUID();
+        timestamp = buf.readLong();
+        return this;
     }
 
     @Override
@@ -61,6 +61,12 @@ public class PlayerState {
         return group != null;
     }
 
+    public PlayerState copy() {
+        PlayerState state = new PlayerState(disabled, disconnected, gameProfile);
+        state.setGroup(group);
+        return state;
+    }
+
     public static PlayerState fromBytes(FriendlyByteBuf buf) {
         PlayerState state = new PlayerState(buf.readBoolean(), buf.readBoolean(), NbtUtils.readGameProfile(buf.readNbt()));
 
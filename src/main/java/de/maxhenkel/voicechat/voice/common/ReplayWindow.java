@@ -0,0 +1,47 @@
+package de.maxhenkel.voicechat.voice.common;
+
+/**
+ * Keeps track of the packet counters received in the last 64 packets to reject replayed packets
+ */
+public class ReplayWindow {
+
+    private static final int SIZE = 64;
+
+    private long highest;
+    private long window;
+
+    public ReplayWindow() {
+        highest = -1L;
+    }
+
+    /**
+     * Marks the counter as received
+     * This should only be called after the packet was authenticated
+     *
+     * @param counter the packet counter
+     * @return false if the packet was already received or is too old to tell
+     */
+    public synchronized boolean accept(long counter) {
+        if (counter < 0L) {
+            return false;
+        }
+        if (counter > highest) {
+            long shift = counter - highest;
+            window = shift >= SIZE ? 0L : window << shift;
+            window |= 1L;
+            highest = counter;
+            return true;
+        }
+        long offset = highest - counter;
+        if (offset >= SIZE) {
+            return false;
+        }
+        long mask = 1L << offset;
+        if ((window & mask) != 0L) {
+            return false;
+        }
+        window |= mask;
+        return true;
+    }
+
+}
@@ -2,49 +2,159 @@ package de.maxhenkel.voicechat.voice.common;
 
 import net.minecraft.network.FriendlyByteBuf;
 
+import javax.annotation.Nullable;
+import java.util.Arrays;
 import java.util.UUID;
 
 public class SoundPacket implements Packet<SoundPacket> {
 
+    @Nullable
     private UUID sender;
+    private int senderId;
     private byte[] data;
+    private int dataLength;
     private long sequenceNumber;
+    private byte audioLevel;
 
     public SoundPacket(UUID sender, byte[] data, long sequenceNumber) {
         this.sender = sender;
         this.data = data;
+        this.dataLength = data.length;
         this.sequenceNumber = sequenceNumber;
     }
 
+    /**
+     * Creates a sound packet from the audio of a microphone packet
+     *
+     * @param sender    the sender of the microphone packet
+     * @param senderId  the session player ID of the sender or 0 if the sender has none
+     * @param micPacket the microphone packet
+     */
+    public SoundPacket(UUID sender, int senderId, MicPacket micPacket) {
+        set(sender, senderId, micPacket);
+    }
+
     public SoundPacket() {
 
     }
 
+    /**
+     * Sets the audio of a microphone packet without copying the audio data
+     * The microphone packet must not be recycled while this packet is used
+     *
+     * @param sender    the sender of the microphone packet
+     * @param senderId  the session player ID of the sender or 0 if the sender has none
+     * @param micPacket the microphone packet
+     * @return this packet
+     */
+    public SoundPacket set(UUID sender, int senderId, MicPacket micPacket) {
+        this.sender = sender;
+        this.senderId = senderId;
+        this.data = micPacket.getDataBuffer();
+        this.dataLength = micPacket.getDataLength();
+        this.sequenceNumber = micPacket.getSequenceNumber();
+        this.audioLevel = micPacket.getEncodedAudioLevel();
+        return this;
+    }
+
     public byte[] getData() {
-        return data;
+        if (data.length == dataLength) {
+            return data;
+        }
+        return Arrays.copyOf(data, dataLength);
     }
 
+    /**
+     * @return the sender or null if the packet only contains the session player ID of the sender
+     */
+    @Nullable
     public UUID getSender() {
         return sender;
     }
 
+    /**
+     * @return the session player ID of the sender or 0 if the packet contains the UUID of the sender
+     */
+    public int getSenderId() {
+        return senderId;
+    }
+
     public long getSequenceNumber() {
         return sequenceNumber;
     }
 
+    /**
+     * @return if the sender attached the audio level of the frame
+     */
+    public boolean hasAudioLevel() {
+        return audioLevel != 0;
+    }
+
+    /**
+     * @return the audio level of the frame in dB
+     */
+    public double getAudioLevel() {
+        return Utils.decodeAudioLevel(audioLevel);
+    }
+
+    /**
+     * The audio data is always read into a new array, since received sound packets are kept in the jitter buffer
+     */
+    private void readData(FriendlyByteBuf buf) {
+        data = buf.readByteArray();
+        dataLength = data.length;
+    }
+
+    private void writeData(FriendlyByteBuf buf) {
+        buf.writeVarInt(dataLength);
+        buf.writeBytes(data, 0, dataLength);
+    }
+
     @Override
     public SoundPacket fromBytes(FriendlyByteBuf buf) {
-        SoundPacket soundPacket = new SoundPacket();
-        soundPacket.sender = buf.readUUID();
-        soundPacket.data = buf.readByteArray();
-        soundPacket.sequenceNumber = buf.readLong();
-        return soundPacket;
+        sender = buf.readUUID();
+        senderId = 0;
+        readData(buf);
+        sequenceNumber = buf.readLong();
+        // Older servers don't send the audio level
+        audioLevel = buf.isReadable() ? buf.readByte() : 0;
+        return this;
+    }
+
+    @Override
+    public SoundPacket fromBytes(FriendlyByteBuf buf, int protocolVersion) {
+        if (protocolVersion < NetworkMessage.COMPACT_PROTOCOL) {
+            return fromBytes(buf);
+        }
+        senderId = buf.readVarInt();
+        sender = senderId <= 0 ? buf.readUUID() : null;
+        readData(buf);
+        sequenceNumber = buf.readVarLong();
+        audioLevel = buf.readByte();
+        return this;
+    }
+
+    @Override
+    public void toBytes(FriendlyByteBuf buf, int protocolVersion) {
+        if (protocolVersion < NetworkMessage.COMPACT_PROTOCOL) {
+            toBytes(buf);
+            return;
+        }
+        // Senders without a session player ID are sent with their UUID
+        buf.writeVarInt(senderId);
+        if (senderId <= 0) {
+            buf.writeUUID(sender);
+        }
+        writeData(buf);
+        buf.writeVarLong(sequenceNumber);
+        buf.writeByte(audioLevel);
     }
 
     @Override
     public void toBytes(FriendlyByteBuf buf) {
         buf.writeUUID(sender);
-        buf.writeByteArray(data);
+        writeData(buf);
         buf.writeLong(sequenceNumber);
+        buf.writeByte(audioLevel);
     }
 }
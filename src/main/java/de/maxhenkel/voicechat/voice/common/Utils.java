@@ -175,47 +175,139 @@ public class Utils {
         return new Vec2(vec.x * Mth.cos(angle) - vec.y * Mth.sin(angle), vec.x * Mth.sin(angle) + vec.y * Mth.cos(angle));
     }
 
+    /**
+     * Converts 16 bit little endian audio to samples
+     *
+     * @param audio   the audio data
+     * @param samples the array to write the samples to (Needs to be at least half the size of the audio data)
+     * @return the samples array
+     */
+    public static short[] bytesToShorts(byte[] audio, short[] samples) {
+        int length = audio.length / 2;
+        for (int i = 0; i < length; i++) {
+            samples[i] = (short) (((audio[i * 2 + 1] & 0xFF) << 8) | (audio[i * 2] & 0xFF));
+        }
+        return samples;
+    }
+
+    /**
+     * Converts samples to 16 bit little endian audio
+     *
+     * @param samples the samples
+     * @param length  the amount of samples to convert
+     * @param audio   the array to write the audio data to (Needs to be at least twice the length)
+     * @return the audio array
+     */
+    public static byte[] shortsToBytes(short[] samples, int length, byte[] audio) {
+        for (int i = 0; i < length; i++) {
+            short sample = samples[i];
+            audio[i * 2] = (byte) sample;
+            audio[i * 2 + 1] = (byte) (sample >> 8);
+        }
+        return audio;
+    }
+
+    private static short clamp(float sample) {
+        if (sample > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        } else if (sample < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) sample;
+    }
+
+    /**
+     * Changes the volume of mono samples
+     * Note that this modifies the input array
+     * Samples that would exceed the 16 bit range get clamped
+     *
+     * @param samples the samples
+     * @param volume  the amplification
+     * @return the adjusted samples
+     */
+    public static short[] adjustVolumeMono(short[] samples, float volume) {
+        if (volume == 1F) {
+            return samples;
+        }
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = clamp(samples[i] * volume);
+        }
+        return samples;
+    }
+
+    /**
+     * Changes the volume of interleaved stereo samples
+     * Note that this modifies the input array
+     * Samples that would exceed the 16 bit range get clamped
+     *
+     * @param samples     the samples
+     * @param volumeLeft  the amplification of the left audio
+     * @param volumeRight the amplification of the right audio
+     * @return the adjusted samples
+     */
+    public static short[] adjustVolumeStereo(short[] samples, float volumeLeft, float volumeRight) {
+        for (int i = 0; i + 1 < samples.length; i += 2) {
+            samples[i] = clamp(samples[i] * volumeLeft);
+            samples[i + 1] = clamp(samples[i + 1] * volumeRight);
+        }
+        return samples;
+    }
+
+    /**
+     * Converts mono samples to interleaved stereo samples
+     *
+     * @param mono        the mono samples
+     * @param length      the amount of mono samples
+     * @param stereo      the array to write the stereo samples to (Needs to be at least twice the length)
+     * @param volumeLeft  the volume modifier for the left audio
+     * @param volumeRight the volume modifier for the right audio
+     * @return the stereo array
+     */
+    public static short[] convertToStereo(short[] mono, int length, short[] stereo, float volumeLeft, float volumeRight) {
+        for (int i = 0; i < length; i++) {
+            short sample = mono[i];
+            stereo[i * 2] = clamp(sample * volumeLeft);
+            stereo[i * 2 + 1] = clamp(sample * volumeRight);
+        }
+        return stereo;
+    }
+
     /**
      * Calculates the audio level of a signal with specific samples.
      *
      * @param samples the samples of the signal to calculate the audio level of
      * @param offset  the offset in samples in which the samples start
-     * @param length  the length in bytes of the signal in samples starting at offset
+     * @param length  the amount of samples starting at offset
      * @return the audio level of the specified signal in db
      */
-    public static double calculateAudioLevel(byte[] samples, int offset, int length) {
-        double rms = 0D; // root mean square (RMS) amplitude
-
-        for (int i = offset; i < length; i += 2) {
-            double sample = (double) Utils.bytesToShort(samples[i], samples[i + 1]) / Short.MAX_VALUE;
-            rms += sample * sample;
+    public static double calculateAudioLevel(short[] samples, int offset, int length) {
+        if (length <= 0) {
+            return -127D;
+        }
+        long sum = 0L;
+        for (int i = offset; i < offset + length; i++) {
+            int sample = samples[i];
+            sum += sample * sample;
         }
 
-        int sampleCount = length / 2;
-
-        rms = (sampleCount == 0) ? 0 : Math.sqrt(rms / sampleCount);
-
-        double db;
+        double rms = Math.sqrt((double) sum / (double) length) / Short.MAX_VALUE;
 
         if (rms > 0D) {
-            db = Math.min(Math.max(20D * Math.log10(rms), -127D), 0D);
-        } else {
-            db = -127D;
+            return Math.min(Math.max(20D * Math.log10(rms), -127D), 0D);
         }
-
-        return db;
+        return -127D;
     }
 
     /**
-     * Calculates the highest audio level in packs of 100
+     * Calculates the highest audio level in packs of 50 samples
      *
      * @param samples the audio samples
      * @return the audio level in db
      */
-    public static double getHighestAudioLevel(byte[] samples) {
+    public static double getHighestAudioLevel(short[] samples) {
         double highest = -127D;
-        for (int i = 0; i < samples.length; i += 100) {
-            double level = Utils.calculateAudioLevel(samples, i, Math.min(i + 100, samples.length));
+        for (int i = 0; i < samples.length; i += 50) {
+            double level = calculateAudioLevel(samples, i, Math.min(50, samples.length - i));
             if (level > highest) {
                 highest = level;
             }
@@ -224,16 +316,16 @@ public class Utils {
     }
 
     /**
-     * Gets the offset of the highest audio level in packs of 100
+     * Gets the offset of the highest audio level in packs of 50 samples
      *
      * @param samples         the audio samples
      * @param activationLevel the activation threshold
-     * @return the audio level in db
+     * @return the offset in samples
      */
-    public static int getActivationOffset(byte[] samples, double activationLevel) {
+    public static int getActivationOffset(short[] samples, double activationLevel) {
         int highestPos = -1;
-        for (int i = 0; i < samples.length; i += 100) {
-            double level = Utils.calculateAudioLevel(samples, i, Math.min(i + 100, samples.length));
+        for (int i = 0; i < samples.length; i += 50) {
+            double level = calculateAudioLevel(samples, i, Math.min(50, samples.length - i));
             if (level >= activationLevel) {
                 highestPos = i;
             }
@@ -241,6 +333,24 @@ public class Utils {
         return highestPos;
     }
 
+    /**
+     * Encodes an audio level into a single byte that can be sent along with the audio
+     *
+     * @param db the audio level in dB (-127 - 0)
+     * @return the encoded audio level (1 - 128), 0 is reserved for packets without an audio level
+     */
+    public static byte encodeAudioLevel(double db) {
+        return (byte) (1 - (int) Math.round(Math.min(Math.max(db, -127D), 0D)));
+    }
+
+    /**
+     * @param audioLevel the encoded audio level
+     * @return the audio level in dB
+     */
+    public static double decodeAudioLevel(byte audioLevel) {
+        return 1 - (audioLevel & 0xFF);
+    }
+
     /**
      * Converts a dB value to a percentage value (-127 - 0) - (0 - 1)
      *
@@ -1,21 +1,43 @@
 package de.maxhenkel.voicechat.voice.server;
 
 import de.maxhenkel.voicechat.voice.common.NetworkMessage;
+import de.maxhenkel.voicechat.voice.common.ReplayWindow;
 
-import java.net.DatagramPacket;
+import javax.annotation.Nullable;
 import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
 import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ClientConnection {
 
+    private static final ThreadLocal<NetworkMessage.DatagramBuffer> SEND_BUFFER = ThreadLocal.withInitial(NetworkMessage.DatagramBuffer::new);
+
     private UUID playerUUID;
     private SocketAddress address;
-    private long lastKeepAlive;
-    private long lastKeepAliveResponse;
+    private int protocolVersion;
+    private int playerId;
+    private AtomicLong packetCounter;
+    private ReplayWindow replayWindow;
+    private AtomicLong droppedPackets;
+    private AtomicLong suppressedPackets;
+    private AtomicLong suppressedBytes;
+    @Nullable
+    private volatile ScheduledFuture<?> keepAliveTask;
+    private volatile long lastKeepAlive;
+    private volatile long lastKeepAliveResponse;
 
-    public ClientConnection(UUID playerUUID, SocketAddress address) {
+    public ClientConnection(UUID playerUUID, SocketAddress address, int protocolVersion, int playerId) {
         this.playerUUID = playerUUID;
         this.address = address;
+        this.protocolVersion = protocolVersion;
+        this.playerId = playerId;
+        this.packetCounter = new AtomicLong();
+        this.replayWindow = new ReplayWindow();
+        this.droppedPackets = new AtomicLong();
+        this.suppressedPackets = new AtomicLong();
+        this.suppressedBytes = new AtomicLong();
         this.lastKeepAlive = 0L;
         this.lastKeepAliveResponse = System.currentTimeMillis();
     }
@@ -28,6 +50,68 @@ public class ClientConnection {
         return address;
     }
 
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * @return the session player ID or 0 if the player has none
+     */
+    public int getPlayerId() {
+        return playerId;
+    }
+
+    public long nextPacketCounter() {
+        return packetCounter.getAndIncrement();
+    }
+
+    public ReplayWindow getReplayWindow() {
+        return replayWindow;
+    }
+
+    public void onPacketDropped() {
+        droppedPackets.incrementAndGet();
+    }
+
+    /**
+     * @return the amount of packets of this player that got dropped because the server was overloaded
+     */
+    public long getDroppedPackets() {
+        return droppedPackets.get();
+    }
+
+    /**
+     * @param size the size of the audio data of the packet
+     */
+    public void onSilentPacketSuppressed(int size) {
+        suppressedPackets.incrementAndGet();
+        suppressedBytes.addAndGet(size);
+    }
+
+    /**
+     * @return the amount of packets of this player that were not forwarded, because they were silent
+     */
+    public long getSuppressedPackets() {
+        return suppressedPackets.get();
+    }
+
+    /**
+     * @return the amount of audio bytes of this player that were not forwarded, because they were silent
+     */
+    public long getSuppressedBytes() {
+        return suppressedBytes.get();
+    }
+
+    public void setKeepAliveTask(ScheduledFuture<?> keepAliveTask) {
+        this.keepAliveTask = keepAliveTask;
+    }
+
+    public void cancelKeepAlive() {
+        if (keepAliveTask != null) {
+            keepAliveTask.cancel(false);
+        }
+    }
+
     public long getLastKeepAlive() {
         return lastKeepAlive;
     }
@@ -45,8 +129,20 @@ public class ClientConnection {
     }
 
     public void send(Server server, NetworkMessage message) throws Exception {
-        byte[] data = message.write(server.getSecret(playerUUID));
-        server.getSocket().send(new DatagramPacket(data, data.length, address));
+        send(server, message, protocolVersion);
+    }
+
+    public void send(Server server, NetworkMessage message, int protocolVersion) throws Exception {
+        if (server.sendBatched(this, message, protocolVersion)) {
+            return;
+        }
+        DatagramChannel channel = server.getChannel();
+        if (channel == null) {
+            return;
+        }
+        NetworkMessage.DatagramBuffer buffer = SEND_BUFFER.get();
+        message.writeServer(server, this, protocolVersion, buffer.getBuffer());
+        buffer.send(channel, address);
     }
 
 }
@@ -0,0 +1,79 @@
+package de.maxhenkel.voicechat.voice.server;
+
+import javax.annotation.Nullable;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A voice chat group that is managed by the {@link GroupManager}
+ */
+public class Group {
+
+    private final String name;
+    @Nullable
+    private final String password;
+    private final int maxMembers;
+    private volatile UUID[] members;
+    private final Set<UUID> invites;
+
+    /**
+     * @param name       the name of the group
+     * @param password   the password or null if everybody can join
+     * @param maxMembers the maximum amount of members or 0 for no limit
+     */
+    public Group(String name, @Nullable String password, int maxMembers) {
+        this.name = name;
+        this.password = password;
+        this.maxMembers = maxMembers;
+        this.members = new UUID[0];
+        this.invites = new HashSet<>();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean hasPassword() {
+        return password != null;
+    }
+
+    public int getMaxMembers() {
+        return maxMembers;
+    }
+
+    /**
+     * The array gets replaced when the members change, so it can be iterated from any thread
+     *
+     * @return the members of the group (This array must not be modified)
+     */
+    public UUID[] getMembers() {
+        return members;
+    }
+
+    public boolean isMember(UUID playerUUID) {
+        for (UUID member : members) {
+            if (member.equals(playerUUID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isFull() {
+        return maxMembers > 0 && members.length >= maxMembers;
+    }
+
+    boolean checkPassword(@Nullable String password) {
+        return this.password == null || this.password.equals(password);
+    }
+
+    void setMembers(UUID[] members) {
+        this.members = members;
+    }
+
+    Set<UUID> getInvites() {
+        return invites;
+    }
+
+}
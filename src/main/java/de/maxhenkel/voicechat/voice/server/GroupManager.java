@@ -0,0 +1,125 @@
+package de.maxhenkel.voicechat.voice.server;
+
+import de.maxhenkel.voicechat.Voicechat;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds all voice chat groups of the server
+ * Groups are identified by their name, since clients only know groups by name.
+ * Groups are created when the first player joins them and removed when the last player leaves them.
+ * Changes are synchronized, lookups can be done from any thread.
+ */
+public class GroupManager {
+
+    private final Map<String, Group> groups;
+    private final Map<UUID, Group> playerGroups;
+
+    public GroupManager() {
+        groups = new ConcurrentHashMap<>();
+        playerGroups = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Adds the player to the group and removes it from its previous group
+     * Creates the group with the provided password if it doesn't exist
+     *
+     * @param playerUUID the player
+     * @param name       the name of the group
+     * @param password   the password or null
+     * @return the result
+     */
+    public synchronized JoinResult joinGroup(UUID playerUUID, String name, @Nullable String password) {
+        if (!Voicechat.GROUP_REGEX.matcher(name).matches()) {
+            return JoinResult.INVALID_NAME;
+        }
+        Group group = groups.get(name);
+        if (group != null && group.isMember(playerUUID)) {
+            return JoinResult.SUCCESS;
+        }
+        if (group == null) {
+            group = new Group(name, password == null || password.isEmpty() ? null : password, Voicechat.SERVER_CONFIG.maxGroupMembers.get());
+            groups.put(name, group);
+        } else {
+            boolean invited = group.getInvites().contains(playerUUID);
+            if (!invited && !group.checkPassword(password)) {
+                return JoinResult.WRONG_PASSWORD;
+            }
+            if (group.isFull()) {
+                return JoinResult.GROUP_FULL;
+            }
+            group.getInvites().remove(playerUUID);
+        }
+        leaveGroup(playerUUID);
+        UUID[] members = Arrays.copyOf(group.getMembers(), group.getMembers().length + 1);
+        members[members.length - 1] = playerUUID;
+        group.setMembers(members);
+        playerGroups.put(playerUUID, group);
+        return JoinResult.SUCCESS;
+    }
+
+    /**
+     * Removes the player from its group and removes the group if it is empty
+     *
+     * @param playerUUID the player
+     */
+    public synchronized void leaveGroup(UUID playerUUID) {
+        Group group = playerGroups.remove(playerUUID);
+        if (group == null) {
+            return;
+        }
+        UUID[] members = Arrays.stream(group.getMembers()).filter(member -> !member.equals(playerUUID)).toArray(UUID[]::new);
+        group.setMembers(members);
+        if (members.length <= 0) {
+            groups.remove(group.getName());
+        }
+    }
+
+    /**
+     * Allows the player to join the group once without the password
+     *
+     * @param group      the group
+     * @param playerUUID the invited player
+     */
+    public synchronized void invite(Group group, UUID playerUUID) {
+        group.getInvites().add(playerUUID);
+    }
+
+    @Nullable
+    public Group getPlayerGroup(UUID playerUUID) {
+        return playerGroups.get(playerUUID);
+    }
+
+    @Nullable
+    public Group getGroup(String name) {
+        return groups.get(name);
+    }
+
+    public enum JoinResult {
+        SUCCESS(null),
+        INVALID_NAME("message.voicechat.invalid_group_name"),
+        WRONG_PASSWORD("message.voicechat.wrong_group_password"),
+        GROUP_FULL("message.voicechat.group_full"),
+        GROUPS_DISABLED("message.voicechat.groups_disabled");
+
+        @Nullable
+        private final String translationKey;
+
+        JoinResult(@Nullable String translationKey) {
+            this.translationKey = translationKey;
+        }
+
+        /**
+         * @return the translation key of the error message or null if the player joined the group
+         */
+        @Nullable
+        public String getTranslationKey() {
+            return translationKey;
+        }
+    }
+
+}
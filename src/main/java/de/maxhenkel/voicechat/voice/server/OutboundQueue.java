@@ -0,0 +1,117 @@
+package de.maxhenkel.voicechat.voice.server;
+
+import de.maxhenkel.voicechat.voice.common.NetworkMessage;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Collects the encrypted datagrams of a worker and sends them in batches.
+ * The JDK has no sendmmsg, so a flush sends all datagrams in one loop over preallocated direct buffers.
+ * This must only be used by a single thread, the metrics can be read from any thread.
+ */
+public class OutboundQueue {
+
+    private final ByteBuffer[] buffers;
+    private final SocketAddress[] addresses;
+    private volatile int size;
+    private volatile long flushCount;
+    private volatile long flushedDatagrams;
+    private volatile int lastFlushSize;
+    private volatile int maxFlushSize;
+
+    public OutboundQueue(int capacity) {
+        buffers = new ByteBuffer[capacity];
+        addresses = new SocketAddress[capacity];
+        for (int i = 0; i < capacity; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(NetworkMessage.MAX_PACKET_SIZE);
+        }
+    }
+
+    /**
+     * Encrypts the message for the provided connection and queues it
+     * Flushes the queue if it is full
+     *
+     * @param channel         the channel to flush to
+     * @param server          the server
+     * @param connection      the receiving connection
+     * @param message         the message
+     * @param protocolVersion the protocol version
+     */
+    public void add(DatagramChannel channel, Server server, ClientConnection connection, NetworkMessage message, int protocolVersion) throws Exception {
+        if (size >= buffers.length) {
+            flush(channel);
+        }
+        ByteBuffer buffer = buffers[size];
+        buffer.clear();
+        message.writeServer(server, connection, protocolVersion, buffer);
+        buffer.flip();
+        addresses[size] = connection.getAddress();
+        size++;
+    }
+
+    /**
+     * Sends all queued datagrams
+     *
+     * @param channel the channel to send the datagrams with
+     */
+    public void flush(DatagramChannel channel) {
+        int count = size;
+        if (count <= 0) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            try {
+                channel.send(buffers[i], addresses[i]);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            addresses[i] = null;
+        }
+        size = 0;
+        flushCount++;
+        flushedDatagrams += count;
+        lastFlushSize = count;
+        if (count > maxFlushSize) {
+            maxFlushSize = count;
+        }
+    }
+
+    /**
+     * @return the amount of datagrams that are waiting to be sent
+     */
+    public int getDepth() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return buffers.length;
+    }
+
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    public long getFlushedDatagrams() {
+        return flushedDatagrams;
+    }
+
+    public int getLastFlushSize() {
+        return lastFlushSize;
+    }
+
+    public int getMaxFlushSize() {
+        return maxFlushSize;
+    }
+
+    public double getAverageFlushSize() {
+        long flushes = flushCount;
+        if (flushes <= 0L) {
+            return 0D;
+        }
+        return (double) flushedDatagrams / (double) flushes;
+    }
+
+}
@@ -0,0 +1,156 @@
+package de.maxhenkel.voicechat.voice.server;
+
+import javax.annotation.Nullable;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Separates the received datagrams of a worker into a control lane and a media lane.
+ * The control lane is always drained first, so authentication, keep alive and ping packets are not delayed by voice traffic.
+ * Control packets are never dropped, they are copied into an unbounded overflow queue if the control ring buffer is full.
+ * Legacy datagrams have no unencrypted packet type, so their voice packets also end up in the control lane.
+ */
+public class PacketLanes {
+
+    private final PacketRingBuffer control;
+    private final Queue<PacketRingBuffer.Slot> overflow;
+    private final PacketRingBuffer media;
+    @Nullable
+    private Object current;
+    @Nullable
+    private volatile Thread consumer;
+    private volatile boolean waiting;
+
+    public PacketLanes(int controlCapacity, int mediaCapacity) {
+        control = new PacketRingBuffer(controlCapacity);
+        overflow = new ConcurrentLinkedQueue<>();
+        media = new PacketRingBuffer(mediaCapacity);
+    }
+
+    /**
+     * Adds the datagram to the control lane
+     * Can be called from any thread
+     *
+     * @param address   the address of the sender
+     * @param datagram  the datagram
+     * @param timestamp the time the datagram was received
+     */
+    public void offerControl(SocketAddress address, ByteBuffer datagram, long timestamp) {
+        // Once the overflow queue is in use, new datagrams have to go there too to keep the order
+        if (!overflow.isEmpty() || !control.offer(address, datagram, timestamp)) {
+            overflow.add(PacketRingBuffer.Slot.copyOf(address, datagram, timestamp));
+        }
+        wakeUp();
+    }
+
+    /**
+     * Adds the datagram to the media lane
+     * If the media lane is full, {@link #evictMedia()} needs to be called before trying again
+     * Can be called from any thread
+     *
+     * @param address   the address of the sender
+     * @param datagram  the datagram
+     * @param timestamp the time the datagram was received
+     * @return false if the lane is full
+     */
+    public boolean offerMedia(SocketAddress address, ByteBuffer datagram, long timestamp) {
+        if (!media.offer(address, datagram, timestamp)) {
+            return false;
+        }
+        wakeUp();
+        return true;
+    }
+
+    /**
+     * Drops the oldest datagram of the full media lane
+     * Can be called from any thread
+     *
+     * @return the address of the dropped datagram or null if no datagram could be dropped
+     */
+    @Nullable
+    public SocketAddress evictMedia() {
+        return media.evictOldest();
+    }
+
+    private void wakeUp() {
+        if (waiting) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Removes the oldest datagram of the control lane or the oldest datagram of the media lane if there are no control packets
+     * Must only be called from the consumer thread
+     *
+     * @return the slot or null if both lanes are empty
+     */
+    @Nullable
+    public PacketRingBuffer.Slot poll() {
+        PacketRingBuffer.Slot slot = control.poll();
+        if (slot != null) {
+            current = control;
+            return slot;
+        }
+        slot = overflow.poll();
+        if (slot != null) {
+            current = overflow;
+            return slot;
+        }
+        slot = media.poll();
+        current = slot == null ? null : media;
+        return slot;
+    }
+
+    /**
+     * Frees the slot returned by {@link #poll()}
+     * Must only be called from the consumer thread
+     */
+    public void release() {
+        if (current == control) {
+            control.release();
+        } else if (current == media) {
+            media.release();
+        }
+        current = null;
+    }
+
+    /**
+     * @return if the slot returned by {@link #poll()} is part of the media lane
+     */
+    public boolean isMedia() {
+        return current == media;
+    }
+
+    /**
+     * Blocks the consumer thread until a datagram gets added or the timeout is reached
+     *
+     * @param timeoutNanos the maximum time to wait
+     */
+    public void await(long timeoutNanos) {
+        consumer = Thread.currentThread();
+        waiting = true;
+        if (isEmpty()) {
+            LockSupport.parkNanos(this, timeoutNanos);
+        }
+        waiting = false;
+    }
+
+    public boolean isEmpty() {
+        return control.isEmpty() && overflow.isEmpty() && media.isEmpty();
+    }
+
+    /**
+     * @return the amount of queued control packets including the overflow queue (Might be outdated when the method returns)
+     */
+    public int getControlSize() {
+        return control.size() + overflow.size();
+    }
+
+    public PacketRingBuffer getMedia() {
+        return media;
+    }
+
+}
@@ -0,0 +1,196 @@
+package de.maxhenkel.voicechat.voice.server;
+
+import de.maxhenkel.voicechat.voice.common.NetworkMessage;
+
+import javax.annotation.Nullable;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded lock-free queue for received datagrams with multiple producers and a single consumer.
+ * All slots are preallocated, so adding and polling datagrams doesn't allocate anything.
+ * Producers can evict the oldest datagram of a full buffer, so the consumer claims a slot before reading it.
+ */
+public class PacketRingBuffer {
+
+    private final Slot[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail;
+    private final AtomicLong head;
+    private long claimed;
+
+    /**
+     * @param capacity the minimum amount of slots (Gets rounded up to the next power of two)
+     */
+    public PacketRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        slots = new Slot[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        tail = new AtomicLong();
+        head = new AtomicLong();
+        claimed = -1L;
+    }
+
+    /**
+     * Copies the remaining bytes of the datagram into the next free slot
+     * Can be called from any thread
+     *
+     * @param address   the address of the sender
+     * @param datagram  the datagram
+     * @param timestamp the time the datagram was received
+     * @return false if the buffer is full
+     */
+    public boolean offer(SocketAddress address, ByteBuffer datagram, long timestamp) {
+        long pos = tail.get();
+        while (true) {
+            long diff = sequences.get((int) pos & mask) - pos;
+            if (diff == 0L) {
+                if (tail.compareAndSet(pos, pos + 1L)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0L) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        int index = (int) pos & mask;
+        slots[index].set(address, datagram, timestamp);
+        sequences.set(index, pos + 1L);
+        return true;
+    }
+
+    /**
+     * Removes the oldest datagram of a full buffer to make room for a new one
+     * Can be called from any thread
+     *
+     * @return the address of the removed datagram or null if the buffer is not full or the slot that needs to be freed is still in use
+     */
+    @Nullable
+    public SocketAddress evictOldest() {
+        while (true) {
+            long pos = head.get();
+            int index = (int) pos & mask;
+            if (tail.get() - pos < slots.length || sequences.get(index) != pos + 1L) {
+                return null;
+            }
+            if (head.compareAndSet(pos, pos + 1L)) {
+                SocketAddress address = slots[index].address;
+                sequences.set(index, pos + slots.length);
+                return address;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest datagram
+     * The slot stays valid until {@link #release()} gets called
+     * Must only be called from the consumer thread
+     *
+     * @return the slot or null if the buffer is empty
+     */
+    @Nullable
+    public Slot poll() {
+        while (true) {
+            long pos = head.get();
+            int index = (int) pos & mask;
+            if (sequences.get(index) != pos + 1L) {
+                return null;
+            }
+            // A producer might have evicted the datagram in the meantime
+            if (head.compareAndSet(pos, pos + 1L)) {
+                claimed = pos;
+                return slots[index];
+            }
+        }
+    }
+
+    /**
+     * Frees the slot returned by {@link #poll()}
+     * Must only be called from the consumer thread
+     */
+    public void release() {
+        if (claimed < 0L) {
+            return;
+        }
+        sequences.set((int) claimed & mask, claimed + slots.length);
+        claimed = -1L;
+    }
+
+    public boolean isEmpty() {
+        long pos = head.get();
+        return sequences.get((int) pos & mask) != pos + 1L;
+    }
+
+    /**
+     * @return the amount of queued datagrams (Might be outdated when the method returns)
+     */
+    public int size() {
+        return (int) Math.max(tail.get() - head.get(), 0L);
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    public static class Slot {
+        private final ByteBuffer buffer;
+        private SocketAddress address;
+        private long timestamp;
+
+        public Slot() {
+            this(NetworkMessage.MAX_PACKET_SIZE);
+        }
+
+        private Slot(int capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+
+        /**
+         * Creates a slot that only fits the provided datagram
+         *
+         * @param address   the address of the sender
+         * @param datagram  the datagram
+         * @param timestamp the time the datagram was received
+         * @return the slot
+         */
+        public static Slot copyOf(SocketAddress address, ByteBuffer datagram, long timestamp) {
+            Slot slot = new Slot(datagram.remaining());
+            slot.set(address, datagram, timestamp);
+            return slot;
+        }
+
+        private void set(SocketAddress address, ByteBuffer datagram, long timestamp) {
+            this.address = address;
+            this.timestamp = timestamp;
+            buffer.clear();
+            buffer.put(datagram);
+            buffer.flip();
+        }
+
+        /**
+         * @return the datagram including the player UUID or session player ID header
+         */
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        public SocketAddress getAddress() {
+            return address;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+}
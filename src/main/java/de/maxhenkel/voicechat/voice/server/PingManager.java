@@ -3,11 +3,11 @@ package de.maxhenkel.voicechat.voice.server;
 import de.maxhenkel.voicechat.Voicechat;
 import de.maxhenkel.voicechat.voice.common.PingPacket;
 
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class PingManager {
 
@@ -17,48 +17,49 @@ public class PingManager {
 
     public PingManager(Server server) {
         this.server = server;
-        listeners = new HashMap<>();
+        listeners = new ConcurrentHashMap<>();
     }
 
     public void onPongPacket(PingPacket packet) {
         Voicechat.LOGGER.debug("Received pong {}", packet.getId());
-        Ping ping = listeners.get(packet.getId());
+        Ping ping = listeners.remove(packet.getId());
         if (ping == null) {
             return;
         }
+        ping.timeoutTask.cancel(false);
         ping.listener.onPong(packet);
-        listeners.remove(packet.getId());
     }
 
-    public void checkTimeouts() {
-        List<Map.Entry<UUID, Ping>> timedOut = listeners.entrySet().stream().filter(uuidPingEntry -> uuidPingEntry.getValue().isTimedOut()).collect(Collectors.toList());
-        for (Map.Entry<UUID, Ping> ping : timedOut) {
-            ping.getValue().listener.onTimeout();
-            listeners.remove(ping.getKey());
+    private void onTimeout(UUID id) {
+        Ping ping = listeners.remove(id);
+        if (ping == null) {
+            return;
         }
+        ping.listener.onTimeout();
     }
 
     public void sendPing(ClientConnection connection, long timeout, PingListener listener) throws Exception {
         UUID id = UUID.randomUUID();
         long timestamp = System.currentTimeMillis();
-        server.sendPacket(new PingPacket(id, timestamp), connection);
+        Ping ping = new Ping(listener, server.getScheduler().schedule(() -> onTimeout(id), timeout, TimeUnit.MILLISECONDS));
+        listeners.put(id, ping);
+        try {
+            server.sendPacket(new PingPacket(id, timestamp), connection);
+        } catch (Exception e) {
+            listeners.remove(id);
+            ping.timeoutTask.cancel(false);
+            throw e;
+        }
         Voicechat.LOGGER.debug("Sent ping {}", id);
-        listeners.put(id, new Ping(listener, timestamp, timeout));
     }
 
     private static class Ping {
         private PingListener listener;
-        private long timestamp;
-        private long timeout;
+        private ScheduledFuture<?> timeoutTask;
 
-        public Ping(PingListener listener, long timestamp, long timeout) {
+        public Ping(PingListener listener, ScheduledFuture<?> timeoutTask) {
             this.listener = listener;
-            this.timestamp = timestamp;
-            this.timeout = timeout;
-        }
-
-        public boolean isTimedOut() {
-            return (System.currentTimeMillis() - timestamp) >= timeout;
+            this.timeoutTask = timeoutTask;
         }
     }
 
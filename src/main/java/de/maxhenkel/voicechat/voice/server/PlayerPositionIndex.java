@@ -0,0 +1,151 @@
+package de.maxhenkel.voicechat.voice.server;
+
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.Level;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * A spatial hash of all player positions that gets snapshotted once per server tick.
+ * The snapshots are immutable, so the voice chat threads can query them without touching the level.
+ */
+public class PlayerPositionIndex {
+
+    private volatile Snapshot snapshot;
+
+    public PlayerPositionIndex() {
+        snapshot = new Snapshot(Collections.emptyMap(), Collections.emptyMap(), 1D);
+    }
+
+    /**
+     * Snapshots the positions of all online players
+     * Needs to be called from the server thread
+     *
+     * @param server   the minecraft server
+     * @param cellSize the size of the grid cells (Usually the voice chat distance)
+     */
+    public void update(MinecraftServer server, double cellSize) {
+        List<ServerPlayer> players = server.getPlayerList().getPlayers();
+        Map<UUID, PlayerPosition> positions = new HashMap<>(players.size() * 2);
+        Map<ResourceKey<Level>, Map<Long, List<PlayerPosition>>> cells = new HashMap<>();
+        for (ServerPlayer player : players) {
+            PlayerPosition position = new PlayerPosition(player.getUUID(), player.level.dimension(), player.getX(), player.getY(), player.getZ());
+            positions.put(position.uuid, position);
+            cells.computeIfAbsent(position.dimension, dimension -> new HashMap<>())
+                    .computeIfAbsent(cellKey(cell(position.x, cellSize), cell(position.y, cellSize), cell(position.z, cellSize)), key -> new ArrayList<>())
+                    .add(position);
+        }
+        snapshot = new Snapshot(positions, cells, cellSize);
+    }
+
+    @Nullable
+    public PlayerPosition getPosition(UUID playerUUID) {
+        return snapshot.positions.get(playerUUID);
+    }
+
+    /**
+     * Collects all players that are within the specified distance (on each axis) of the provided player
+     *
+     * @param playerUUID the player
+     * @param distance   the maximum distance
+     * @param result     the list to add the nearby players to (This list does not get cleared)
+     * @return false if the player is not in the index
+     */
+    public boolean getNearbyPlayers(UUID playerUUID, double distance, List<PlayerPosition> result) {
+        Snapshot s = snapshot;
+        PlayerPosition center = s.positions.get(playerUUID);
+        if (center == null) {
+            return false;
+        }
+        Map<Long, List<PlayerPosition>> dimensionCells = s.cells.get(center.dimension);
+        if (dimensionCells == null) {
+            return true;
+        }
+        int range = (int) Math.ceil(distance / s.cellSize);
+        int cx = cell(center.x, s.cellSize);
+        int cy = cell(center.y, s.cellSize);
+        int cz = cell(center.z, s.cellSize);
+        for (int x = cx - range; x <= cx + range; x++) {
+            for (int y = cy - range; y <= cy + range; y++) {
+                for (int z = cz - range; z <= cz + range; z++) {
+                    List<PlayerPosition> cell = dimensionCells.get(cellKey(x, y, z));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (PlayerPosition position : cell) {
+                        if (position == center) {
+                            continue;
+                        }
+                        if (Math.abs(position.x - center.x) > distance || Math.abs(position.y - center.y) > distance || Math.abs(position.z - center.z) > distance) {
+                            continue;
+                        }
+                        result.add(position);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static int cell(double coordinate, double cellSize) {
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    /**
+     * Packs the cell coordinates into a single long (21 bits per axis)
+     * Colliding keys only result in additional candidates that get filtered by the distance check
+     */
+    private static long cellKey(int x, int y, int z) {
+        return ((long) (x & 0x1FFFFF) << 42) | ((long) (y & 0x1FFFFF) << 21) | (long) (z & 0x1FFFFF);
+    }
+
+    private static class Snapshot {
+        private final Map<UUID, PlayerPosition> positions;
+        private final Map<ResourceKey<Level>, Map<Long, List<PlayerPosition>>> cells;
+        private final double cellSize;
+
+        public Snapshot(Map<UUID, PlayerPosition> positions, Map<ResourceKey<Level>, Map<Long, List<PlayerPosition>>> cells, double cellSize) {
+            this.positions = positions;
+            this.cells = cells;
+            this.cellSize = cellSize;
+        }
+    }
+
+    public static class PlayerPosition {
+        private final UUID uuid;
+        private final ResourceKey<Level> dimension;
+        private final double x, y, z;
+
+        public PlayerPosition(UUID uuid, ResourceKey<Level> dimension, double x, double y, double z) {
+            this.uuid = uuid;
+            this.dimension = dimension;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        public UUID getUUID() {
+            return uuid;
+        }
+
+        public ResourceKey<Level> getDimension() {
+            return dimension;
+        }
+
+        public double getX() {
+            return x;
+        }
+
+        public double getY() {
+            return y;
+        }
+
+        public double getZ() {
+            return z;
+        }
+    }
+
+}
@@ -1,48 +1,456 @@
 package de.maxhenkel.voicechat.voice.server;
 
+import de.maxhenkel.voicechat.Voicechat;
 import de.maxhenkel.voicechat.events.PlayerEvents;
-import de.maxhenkel.voicechat.net.NetManager;
-import de.maxhenkel.voicechat.net.PlayerStatePacket;
-import de.maxhenkel.voicechat.net.PlayerStatesPacket;
+import de.maxhenkel.voicechat.net.*;
 import de.maxhenkel.voicechat.voice.common.PlayerState;
+import net.minecraft.Util;
+import net.minecraft.network.chat.TranslatableComponent;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerPlayer;
 
 import javax.annotation.Nullable;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PlayerStateManager {
 
+    /**
+     * The interval in ticks in which players get the states of players that got in state distance
+     */
+    private static final int INTEREST_UPDATE_INTERVAL = 10;
+
     private ConcurrentHashMap<UUID, PlayerState> states;
+    private ConcurrentHashMap<UUID, Integer> playerIds;
+    private AtomicInteger nextPlayerId;
+    private GroupManager groupManager;
+    private ConcurrentHashMap<UUID, PlayerState> pendingStates;
+    private Set<UUID> pendingJoins;
+    private Set<UUID> pendingRemovals;
+    private Map<UUID, PlayerState> sentStates;
+    private Map<UUID, Set<UUID>> sentProfiles;
+    private Map<UUID, Set<UUID>> syncedPlayers;
+    private Map<UUID, Set<UUID>> requestedStates;
+    private List<PlayerPositionIndex.PlayerPosition> nearbyPlayers;
+    private Set<UUID> nearby;
+    private Set<UUID> groupMembers;
+    private List<PlayerState> playerStates;
+    private Set<UUID> fullStates;
+    private List<UUID> removedPlayers;
+    private int ticks;
 
-    public PlayerStateManager() {
+    public PlayerStateManager(GroupManager groupManager) {
+        this.groupManager = groupManager;
         states = new ConcurrentHashMap<>();
+        playerIds = new ConcurrentHashMap<>();
+        nextPlayerId = new AtomicInteger(1);
+        pendingStates = new ConcurrentHashMap<>();
+        pendingJoins = new HashSet<>();
+        pendingRemovals = new HashSet<>();
+        sentStates = new HashMap<>();
+        sentProfiles = new ConcurrentHashMap<>();
+        syncedPlayers = new HashMap<>();
+        requestedStates = new ConcurrentHashMap<>();
+        nearbyPlayers = new ArrayList<>();
+        nearby = new HashSet<>();
+        groupMembers = new HashSet<>();
+        playerStates = new ArrayList<>();
+        fullStates = new HashSet<>();
+        removedPlayers = new ArrayList<>();
         PlayerEvents.PLAYER_LOGGED_OUT.register(this::removePlayer);
         PlayerEvents.PLAYER_LOGGED_IN.register(this::notifyPlayer);
 
-        NetManager.registerServerReceiver(PlayerStatePacket.class, (server, player, handler, responseSender, packet) -> {
+        // States are only changed on the server thread, since they are read when sending the states with the next tick
+        NetManager.registerServerReceiver(PlayerStatePacket.class, (server, player, handler, responseSender, packet) -> server.execute(() -> {
             PlayerState state = packet.getPlayerState();
             state.setGameProfile(player.getGameProfile());
+            if (!managesGroups(player)) {
+                onGroupRequest(player, state.getGroup());
+            }
+            // The group is always the one of the group manager, regardless of what the client sent
+            Group group = groupManager.getPlayerGroup(player.getUUID());
+            state.setGroup(group == null ? null : group.getName());
             states.put(player.getUUID(), state);
-            broadcastState(server, state);
-        });
+            broadcastState(state);
+        }));
+        NetManager.registerServerReceiver(JoinGroupPacket.class, (server, player, handler, responseSender, packet) -> server.execute(() -> {
+            GroupManager.JoinResult result = joinGroup(player, packet.getGroup(), packet.getPassword());
+            if (result.getTranslationKey() != null) {
+                player.sendMessage(new TranslatableComponent(result.getTranslationKey()), Util.NIL_UUID);
+            }
+        }));
+        NetManager.registerServerReceiver(LeaveGroupPacket.class, (server, player, handler, responseSender, packet) -> server.execute(() -> {
+            leaveGroup(player);
+        }));
+    }
+
+    /**
+     * Clients that join and leave groups with {@link JoinGroupPacket} and {@link LeaveGroupPacket} also support {@link PlayerStateDeltaPacket}, since both were added with the same version
+     *
+     * @param player the player
+     * @return if the group in the state of the client is only the group it got from the server
+     */
+    private boolean managesGroups(ServerPlayer player) {
+        return NetManager.canSendToClient(player, PlayerStateDeltaPacket.PLAYER_STATE_DELTA);
+    }
+
+    /**
+     * Older clients change their group by sending their state with the new group
+     *
+     * @param player the player
+     * @param group  the group in the state sent by the client
+     */
+    private void onGroupRequest(ServerPlayer player, @Nullable String group) {
+        Group current = groupManager.getPlayerGroup(player.getUUID());
+        if (Objects.equals(current == null ? null : current.getName(), group)) {
+            return;
+        }
+        if (group == null) {
+            groupManager.leaveGroup(player.getUUID());
+            return;
+        }
+        GroupManager.JoinResult result = Voicechat.SERVER_CONFIG.groupsEnabled.get() ? groupManager.joinGroup(player.getUUID(), group, null) : GroupManager.JoinResult.GROUPS_DISABLED;
+        if (result.getTranslationKey() != null) {
+            player.sendMessage(new TranslatableComponent(result.getTranslationKey()), Util.NIL_UUID);
+        }
+    }
+
+    /**
+     * Adds the player to the group and sends the new state of the player to everybody
+     *
+     * @param player   the player
+     * @param group    the name of the group
+     * @param password the password of the group or null
+     * @return the result
+     */
+    public GroupManager.JoinResult joinGroup(ServerPlayer player, String group, @Nullable String password) {
+        if (!Voicechat.SERVER_CONFIG.groupsEnabled.get()) {
+            return GroupManager.JoinResult.GROUPS_DISABLED;
+        }
+        GroupManager.JoinResult result = groupManager.joinGroup(player.getUUID(), group, password);
+        if (result == GroupManager.JoinResult.SUCCESS) {
+            updateGroup(player);
+        }
+        return result;
+    }
+
+    public void leaveGroup(ServerPlayer player) {
+        groupManager.leaveGroup(player.getUUID());
+        updateGroup(player);
+    }
+
+    private void updateGroup(ServerPlayer player) {
+        PlayerState state = states.get(player.getUUID());
+        if (state == null) {
+            return;
+        }
+        Group group = groupManager.getPlayerGroup(player.getUUID());
+        state.setGroup(group == null ? null : group.getName());
+        broadcastState(state);
     }
 
-    private void broadcastState(MinecraftServer server, PlayerState state) {
-        PlayerStatePacket packet = new PlayerStatePacket(state);
-        server.getPlayerList().getPlayers().forEach(p -> NetManager.sendToClient(p, packet));
+    /**
+     * Queues the state to be sent with the next {@link #tick(MinecraftServer, PlayerPositionIndex)}
+     * Only the latest state of a player is sent if it changes multiple times within a tick
+     *
+     * @param state the state
+     */
+    private void broadcastState(PlayerState state) {
+        pendingStates.put(state.getGameProfile().getId(), state);
     }
 
     private void notifyPlayer(ServerPlayer player) {
-        PlayerStatesPacket packet = new PlayerStatesPacket(states);
-        NetManager.sendToClient(player, packet);
-        broadcastState(player.server, new PlayerState(false, true, player.getGameProfile()));
+        // IDs are never reused during a session, so clients can't confuse a new player with a player that left
+        playerIds.computeIfAbsent(player.getUUID(), uuid -> nextPlayerId.getAndIncrement());
+        pendingRemovals.remove(player.getUUID());
+        pendingJoins.add(player.getUUID());
+        broadcastState(new PlayerState(false, true, player.getGameProfile()));
     }
 
     private void removePlayer(ServerPlayer player) {
         states.remove(player.getUUID());
-        broadcastState(player.server, new PlayerState(true, true, player.getGameProfile())); //TODO maybe remove
+        groupManager.leaveGroup(player.getUUID());
+        pendingJoins.remove(player.getUUID());
+        pendingRemovals.add(player.getUUID());
+        broadcastState(new PlayerState(true, true, player.getGameProfile())); //TODO maybe remove
+        // The session player ID is removed with the next tick, after the disconnected state was sent
+    }
+
+    /**
+     * Sends all state changes since the last tick to the players that are interested in them
+     * Clients that support it get a single {@link PlayerStateDeltaPacket}, older clients get a {@link PlayerStatePacket} per changed player.
+     * Players that joined since the last tick get the states of all players they are interested in instead.
+     * Needs to be called from the server thread.
+     *
+     * @param server        the minecraft server
+     * @param positionIndex the positions of the players of this tick
+     */
+    public void tick(MinecraftServer server, PlayerPositionIndex positionIndex) {
+        boolean updateInterest = ++ticks % INTEREST_UPDATE_INTERVAL == 0;
+        if (pendingStates.isEmpty() && pendingJoins.isEmpty() && requestedStates.isEmpty() && !updateInterest) {
+            return;
+        }
+
+        // Players that logged in again need to get all states, since their client cleared them
+        for (UUID playerUUID : pendingJoins) {
+            syncedPlayers.remove(playerUUID);
+            sentProfiles.remove(playerUUID);
+        }
+        pendingJoins.clear();
+
+        List<PlayerState> changedStates = new ArrayList<>();
+        Set<UUID> changedGroups = new HashSet<>();
+        for (UUID playerUUID : pendingStates.keySet()) {
+            PlayerState state = pendingStates.remove(playerUUID);
+            if (state == null) {
+                continue;
+            }
+            state = state.copy();
+            PlayerState previous = sentStates.put(playerUUID, state);
+            if (previous == null || !Objects.equals(previous.getGroup(), state.getGroup())) {
+                changedGroups.add(playerUUID);
+            }
+            changedStates.add(state);
+        }
+
+        double distance = getStateDistance();
+        boolean groupMembersUpdated = false;
+        for (ServerPlayer player : server.getPlayerList().getPlayers()) {
+            Set<UUID> synced = syncedPlayers.get(player.getUUID());
+            boolean initial = synced == null;
+            if (initial) {
+                synced = new HashSet<>();
+                syncedPlayers.put(player.getUUID(), synced);
+            }
+            playerStates.clear();
+            fullStates.clear();
+            removedPlayers.clear();
+
+            for (PlayerState state : changedStates) {
+                UUID playerUUID = state.getGameProfile().getId();
+                if (synced.contains(playerUUID)) {
+                    playerStates.add(state);
+                } else if (state.hasGroup() && !pendingRemovals.contains(playerUUID)) {
+                    // Players that join a group are visible to everybody
+                    synced.add(playerUUID);
+                    playerStates.add(state);
+                    fullStates.add(playerUUID);
+                }
+            }
+
+            if (initial || updateInterest) {
+                if (!groupMembersUpdated) {
+                    updateGroupMembers();
+                    groupMembersUpdated = true;
+                }
+                updateInterest(player, synced, positionIndex, distance);
+            }
+
+            Set<UUID> requested = requestedStates.remove(player.getUUID());
+            if (requested != null) {
+                for (UUID playerUUID : requested) {
+                    removedPlayers.remove(playerUUID);
+                    addSynced(playerUUID, synced);
+                }
+            }
+
+            if ((initial || !removedPlayers.isEmpty()) && !NetManager.canSendToClient(player, PlayerStateDeltaPacket.PLAYER_STATE_DELTA)) {
+                // Older clients can only forget states by getting all states again
+                sendAllStates(player, synced);
+            } else if (!playerStates.isEmpty() || !removedPlayers.isEmpty()) {
+                sendStates(player, playerStates, changedGroups, fullStates, removedPlayers, synced);
+            }
+        }
+
+        for (UUID playerUUID : pendingRemovals) {
+            playerIds.remove(playerUUID);
+            sentStates.remove(playerUUID);
+            sentProfiles.remove(playerUUID);
+            sentProfiles.values().forEach(profiles -> profiles.remove(playerUUID));
+            syncedPlayers.remove(playerUUID);
+            syncedPlayers.values().forEach(synced -> synced.remove(playerUUID));
+            requestedStates.remove(playerUUID);
+        }
+        pendingRemovals.clear();
+    }
+
+    /**
+     * @param player        the receiving player
+     * @param changedStates the states to send
+     * @param changedGroups the players whose group changed
+     * @param fullStates    the players the receiving player didn't know about before
+     * @param removed       the players the receiving player is not interested in anymore
+     * @param synced        the players the receiving player has the state of
+     */
+    private void sendStates(ServerPlayer player, List<PlayerState> changedStates, Set<UUID> changedGroups, Set<UUID> fullStates, List<UUID> removed, Set<UUID> synced) {
+        Set<UUID> profiles = sentProfiles.computeIfAbsent(player.getUUID(), uuid -> ConcurrentHashMap.newKeySet());
+        if (!NetManager.canSendToClient(player, PlayerStateDeltaPacket.PLAYER_STATE_DELTA)) {
+            // A single packet with all states is cheaper than a packet per player if many players changed, e.g. during mass logins
+            if (changedStates.size() > 1 && changedStates.size() * 2 >= synced.size()) {
+                sendAllStates(player, synced);
+                return;
+            }
+            for (PlayerState state : changedStates) {
+                UUID playerUUID = state.getGameProfile().getId();
+                profiles.add(playerUUID);
+                NetManager.sendToClient(player, new PlayerStatePacket(state, getPlayerId(playerUUID)));
+            }
+            return;
+        }
+        List<PlayerStateDeltaPacket.Delta> deltas = new ArrayList<>(changedStates.size() + removed.size());
+        for (PlayerState state : changedStates) {
+            UUID playerUUID = state.getGameProfile().getId();
+            if (removed.contains(playerUUID)) {
+                continue;
+            }
+            boolean withProfile = profiles.add(playerUUID);
+            boolean groupChanged = withProfile || changedGroups.contains(playerUUID) || fullStates.contains(playerUUID);
+            deltas.add(new PlayerStateDeltaPacket.Delta(state, groupChanged, withProfile, getPlayerId(playerUUID)));
+        }
+        for (UUID playerUUID : removed) {
+            // The client forgets the state, so it needs the game profile again once the player gets back in range
+            profiles.remove(playerUUID);
+            deltas.add(new PlayerStateDeltaPacket.Delta(playerUUID));
+        }
+        NetManager.sendToClient(player, new PlayerStateDeltaPacket(deltas));
+    }
+
+    /**
+     * Sends the states of all players the receiving player is interested in as a single {@link PlayerStatesPacket}
+     * This replaces all states on the client.
+     *
+     * @param player the receiving player
+     * @param synced the players the receiving player has the state of
+     */
+    private void sendAllStates(ServerPlayer player, Set<UUID> synced) {
+        Map<UUID, PlayerState> allStates = new HashMap<>();
+        Map<UUID, Integer> ids = new HashMap<>();
+        for (UUID playerUUID : synced) {
+            allStates.put(playerUUID, sentStates.get(playerUUID));
+            int playerId = getPlayerId(playerUUID);
+            if (playerId > 0) {
+                ids.put(playerUUID, playerId);
+            }
+        }
+        NetManager.sendToClient(player, new PlayerStatesPacket(allStates, ids));
+        Set<UUID> profiles = sentProfiles.computeIfAbsent(player.getUUID(), uuid -> ConcurrentHashMap.newKeySet());
+        profiles.retainAll(synced);
+        profiles.addAll(synced);
+    }
+
+    /**
+     * Removes the players the player is not interested in anymore and adds the states of the players it got interested in
+     * A player is interested in its own state, the states of all players in groups and the states of the players in state distance
+     *
+     * @param player        the player
+     * @param synced        the players the player has the state of
+     * @param positionIndex the positions of the players
+     * @param distance      the state distance or 0 if the player is interested in all players
+     */
+    private void updateInterest(ServerPlayer player, Set<UUID> synced, PlayerPositionIndex positionIndex, double distance) {
+        if (distance <= 0D) {
+            for (UUID playerUUID : sentStates.keySet()) {
+                addSynced(playerUUID, synced);
+            }
+            return;
+        }
+        nearby.clear();
+        nearby.add(player.getUUID());
+        nearbyPlayers.clear();
+        positionIndex.getNearbyPlayers(player.getUUID(), distance, nearbyPlayers);
+        for (PlayerPositionIndex.PlayerPosition position : nearbyPlayers) {
+            nearby.add(position.getUUID());
+        }
+        nearbyPlayers.clear();
+
+        Iterator<UUID> iterator = synced.iterator();
+        while (iterator.hasNext()) {
+            UUID playerUUID = iterator.next();
+            if (!nearby.contains(playerUUID) && !groupMembers.contains(playerUUID)) {
+                iterator.remove();
+                if (!pendingRemovals.contains(playerUUID)) {
+                    removedPlayers.add(playerUUID);
+                }
+            }
+        }
+        for (UUID playerUUID : nearby) {
+            addSynced(playerUUID, synced);
+        }
+        for (UUID playerUUID : groupMembers) {
+            addSynced(playerUUID, synced);
+        }
+    }
+
+    /**
+     * @param receiver the receiving player
+     * @param player   the player
+     * @return if the receiving player got the session player ID of the player
+     */
+    public boolean knowsPlayerId(UUID receiver, UUID player) {
+        Set<UUID> profiles = sentProfiles.get(receiver);
+        return profiles != null && profiles.contains(player);
+    }
+
+    /**
+     * Sends the state and the session player ID of the player to the receiving player with the next tick, regardless of the state distance
+     * Can be called from any thread
+     *
+     * @param receiver the receiving player
+     * @param player   the player
+     */
+    public void requestState(UUID receiver, UUID player) {
+        requestedStates.computeIfAbsent(receiver, uuid -> ConcurrentHashMap.newKeySet()).add(player);
+    }
+
+    /**
+     * Adds the state of the player to the states that are sent with this tick, if the receiving player didn't have it yet
+     *
+     * @param playerUUID the player
+     * @param synced     the players the receiving player has the state of
+     */
+    private void addSynced(UUID playerUUID, Set<UUID> synced) {
+        PlayerState state = sentStates.get(playerUUID);
+        if (state == null || pendingRemovals.contains(playerUUID)) {
+            return;
+        }
+        if (synced.add(playerUUID)) {
+            playerStates.add(state);
+            fullStates.add(playerUUID);
+        }
+    }
+
+    private void updateGroupMembers() {
+        groupMembers.clear();
+        for (Map.Entry<UUID, PlayerState> entry : sentStates.entrySet()) {
+            if (entry.getValue().hasGroup() && !pendingRemovals.contains(entry.getKey())) {
+                groupMembers.add(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * The state distance is always bigger than the voice distance, so players get the state of another player before they can hear them
+     *
+     * @return the state distance or 0 if the states are sent to everybody
+     */
+    private double getStateDistance() {
+        double distance = Voicechat.SERVER_CONFIG.playerStateDistance.get();
+        if (distance <= 0D) {
+            return 0D;
+        }
+        return Math.max(distance, Voicechat.SERVER_CONFIG.voiceChatDistance.get() * 2D);
+    }
+
+    /**
+     * The session player ID is a short replacement of the player UUID in voice packets
+     *
+     * @param playerUUID the player
+     * @return the session player ID or 0 if the player is not logged in
+     */
+    public int getPlayerId(UUID playerUUID) {
+        Integer id = playerIds.get(playerUUID);
+        return id == null ? 0 : id;
     }
 
     @Nullable
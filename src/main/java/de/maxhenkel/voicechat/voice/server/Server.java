@@ -2,46 +2,73 @@ package de.maxhenkel.voicechat.voice.server;
 
 import de.maxhenkel.voicechat.Voicechat;
 import de.maxhenkel.voicechat.debug.CooldownTimer;
+import de.maxhenkel.voicechat.voice.client.AudioChannelConfig;
 import de.maxhenkel.voicechat.voice.common.*;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerPlayer;
-import net.minecraft.world.entity.player.Player;
-import net.minecraft.world.phys.AABB;
 
-import java.net.BindException;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
+import javax.annotation.Nullable;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 public class Server extends Thread {
 
+    private static final long WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MEDIA_TTL = new MicPacket().getTTL();
+
     private Map<UUID, ClientConnection> connections;
+    private Map<SocketAddress, ClientConnection> addressIndex;
     private Map<UUID, UUID> secrets;
+    private Map<UUID, SecretKeySpec> keys;
     private int port;
     private MinecraftServer server;
-    private DatagramSocket socket;
-    private ProcessThread processThread;
-    private BlockingQueue<NetworkMessage> packetQueue;
+    private volatile DatagramChannel[] channels;
+    private List<ReceiveThread> receiveThreads;
+    private Worker[] workers;
+    private ScheduledExecutorService scheduler;
     private PingManager pingManager;
+    private GroupManager groupManager;
     private PlayerStateManager playerStateManager;
+    private PlayerPositionIndex playerPositionIndex;
+    private int frameDuration;
 
     public Server(int port, MinecraftServer server) {
         this.port = port;
         this.server = server;
-        connections = new HashMap<>();
-        secrets = new HashMap<>();
-        packetQueue = new LinkedBlockingQueue<>();
+        int configFrameDuration = Voicechat.SERVER_CONFIG.frameDuration.get();
+        frameDuration = AudioChannelConfig.getSupportedFrameDuration(configFrameDuration);
+        if (frameDuration != configFrameDuration) {
+            Voicechat.LOGGER.warn("Unsupported frame duration {} ms, using {} ms", configFrameDuration, frameDuration);
+        }
+        connections = new ConcurrentHashMap<>();
+        addressIndex = new ConcurrentHashMap<>();
+        secrets = new ConcurrentHashMap<>();
+        keys = new ConcurrentHashMap<>();
+        receiveThreads = new ArrayList<>();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "VoiceChatTimerThread");
+            thread.setDaemon(true);
+            return thread;
+        });
         pingManager = new PingManager(this);
-        playerStateManager = new PlayerStateManager();
+        groupManager = new GroupManager();
+        playerStateManager = new PlayerStateManager(groupManager);
+        playerPositionIndex = new PlayerPositionIndex();
         setDaemon(true);
         setName("VoiceChatServerThread");
-        processThread = new ProcessThread();
-        processThread.start();
+        workers = new Worker[Voicechat.SERVER_CONFIG.workerThreads.get()];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
     }
 
     @Override
@@ -59,184 +86,449 @@ public class Server extends Thread {
                 e.printStackTrace();
             }
             try {
-                socket = new DatagramSocket(port, address);
-                socket.setTrafficClass(0x04); // IPTOS_RELIABILITY
+                channels = openChannels(new InetSocketAddress(address, port), Voicechat.SERVER_CONFIG.sockets.get());
             } catch (BindException e) {
                 Voicechat.LOGGER.error("Failed to bind to address '" + addr + "'");
                 e.printStackTrace();
                 System.exit(1);
                 return;
             }
-            Voicechat.LOGGER.info("Server started at port " + port);
+            Voicechat.LOGGER.info("Server started at port {} ({} sockets, {} worker threads)", port, channels.length, workers.length);
 
-            while (!socket.isClosed()) {
-                try {
-                    NetworkMessage message = NetworkMessage.readPacketServer(socket, this);
-                    packetQueue.add(message);
-                } catch (Exception e) {
-                }
+            for (int i = 1; i < channels.length; i++) {
+                ReceiveThread receiveThread = new ReceiveThread(channels[i], i);
+                receiveThreads.add(receiveThread);
+                receiveThread.start();
             }
-        } catch (SocketException e) {
+            receive(channels[0]);
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public UUID getSecret(UUID playerUUID) {
-        if (secrets.containsKey(playerUUID)) {
-            return secrets.get(playerUUID);
-        } else {
-            UUID secret = UUID.randomUUID();
-            secrets.put(playerUUID, secret);
-            return secret;
+    /**
+     * Opens the provided amount of channels bound to the same address
+     * Falls back to a single channel if SO_REUSEPORT is not supported
+     */
+    private static DatagramChannel[] openChannels(InetSocketAddress bindAddress, int amount) throws IOException {
+        DatagramChannel first = DatagramChannel.open();
+        if (amount > 1 && !first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            Voicechat.LOGGER.warn("SO_REUSEPORT is not supported on this platform - Using a single socket");
+            amount = 1;
+        }
+        DatagramChannel[] channels = new DatagramChannel[amount];
+        for (int i = 0; i < amount; i++) {
+            DatagramChannel channel = i == 0 ? first : DatagramChannel.open();
+            if (amount > 1) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.setOption(StandardSocketOptions.IP_TOS, 0x04); // IPTOS_RELIABILITY
+            channel.bind(bindAddress);
+            channels[i] = channel;
         }
+        return channels;
+    }
+
+    /**
+     * Receives datagrams until the channel gets closed and hands them to the worker of the sending player
+     * The decryption happens on the worker, so all packets of one player are processed in order
+     */
+    private void receive(DatagramChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(NetworkMessage.MAX_PACKET_SIZE);
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress address = channel.receive(buffer);
+                if (address == null) {
+                    continue;
+                }
+                long timestamp = System.currentTimeMillis();
+                buffer.flip();
+                ClientConnection connection = addressIndex.get(address);
+                if (connection == null && buffer.remaining() <= 16) {
+                    continue;
+                }
+                int hash;
+                if (connection != null) {
+                    hash = connection.getPlayerUUID().hashCode();
+                } else {
+                    // Same as the hash code of the player UUID
+                    long bits = buffer.getLong(0) ^ buffer.getLong(8);
+                    hash = (int) (bits >> 32) ^ (int) bits;
+                }
+                PacketLanes queue = workers[Math.floorMod(hash, workers.length)].packetQueue;
+                if (!NetworkMessage.isMediaPacket(buffer, connection != null && connection.getProtocolVersion() >= NetworkMessage.COMPACT_PROTOCOL)) {
+                    queue.offerControl(address, buffer, timestamp);
+                    continue;
+                }
+                // Dropping the oldest voice packets first keeps the latency low when the worker can't keep up
+                while (!queue.offerMedia(address, buffer, timestamp)) {
+                    SocketAddress evicted = queue.evictMedia();
+                    if (evicted == null) {
+                        onPacketDropped(connection);
+                        break;
+                    }
+                    onPacketDropped(addressIndex.get(evicted));
+                }
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    /**
+     * @param connection the connection of the address the dropped datagram was received from
+     */
+    private void onPacketDropped(@Nullable ClientConnection connection) {
+        if (connection != null) {
+            connection.onPacketDropped();
+        }
+        CooldownTimer.run("drop", () -> {
+            Voicechat.LOGGER.warn("Dropping voice chat packets! Your Server might be overloaded!");
+        });
+    }
+
+    /**
+     * Issues a secret to a logged in player or returns the secret it already has
+     * The key of the secret gets cached until the secret gets invalidated by {@link #disconnectClient(UUID)}
+     *
+     * @param playerUUID the player
+     * @return the secret of the player
+     */
+    public UUID getSecret(UUID playerUUID) {
+        UUID secret = secrets.computeIfAbsent(playerUUID, uuid -> UUID.randomUUID());
+        keys.computeIfAbsent(playerUUID, uuid -> AES.createKeySpec(secret));
+        return secret;
+    }
+
+    /**
+     * Never issues a new secret, since the player UUID of received datagrams is not authenticated
+     *
+     * @param playerUUID the player
+     * @return the secret of the player or null if the player has none
+     */
+    @Nullable
+    public UUID getExistingSecret(UUID playerUUID) {
+        return secrets.get(playerUUID);
+    }
+
+    /**
+     * @param playerUUID the player
+     * @return the key of the players secret or null if the player has no secret
+     */
+    @Nullable
+    public SecretKeySpec getKey(UUID playerUUID) {
+        return keys.get(playerUUID);
     }
 
     public void disconnectClient(UUID playerUUID) {
-        connections.remove(playerUUID);
+        ClientConnection connection = connections.remove(playerUUID);
+        if (connection != null) {
+            addressIndex.remove(connection.getAddress(), connection);
+            connection.cancelKeepAlive();
+        }
         secrets.remove(playerUUID);
+        keys.remove(playerUUID);
+    }
+
+    /**
+     * Called at the end of every server tick from the server thread
+     */
+    public void tick() {
+        playerPositionIndex.update(server, Voicechat.SERVER_CONFIG.voiceChatDistance.get());
+        playerStateManager.tick(server, playerPositionIndex);
     }
 
     public void close() {
-        socket.close();
-        processThread.close();
+        if (channels != null) {
+            for (DatagramChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        for (Worker worker : workers) {
+            worker.close();
+        }
+        scheduler.shutdownNow();
     }
 
-    private class ProcessThread extends Thread {
-        private boolean running;
+    private class ReceiveThread extends Thread {
+        private final DatagramChannel channel;
 
-        public ProcessThread() {
+        public ReceiveThread(DatagramChannel channel, int id) {
+            this.channel = channel;
+            setDaemon(true);
+            setName("VoiceChatReceiveThread-" + id);
+        }
+
+        @Override
+        public void run() {
+            receive(channel);
+        }
+    }
+
+    /**
+     * Decrypts and processes the packets of all players that are assigned to it
+     */
+    private class Worker extends Thread {
+        private final int id;
+        private final PacketLanes packetQueue;
+        private final OutboundQueue outboundQueue;
+        private final List<PlayerPositionIndex.PlayerPosition> nearbyPlayers;
+        private volatile boolean running;
+
+        public Worker(int id) {
+            this.id = id;
+            int queueSize = Voicechat.SERVER_CONFIG.packetQueueSize.get();
+            this.packetQueue = new PacketLanes(queueSize, queueSize);
+            this.outboundQueue = new OutboundQueue(Voicechat.SERVER_CONFIG.sendBatchSize.get());
+            this.nearbyPlayers = new ArrayList<>();
             this.running = true;
             setDaemon(true);
-            setName("VoiceChatPacketProcessingThread");
+            setName("VoiceChatPacketProcessingThread-" + id);
         }
 
         @Override
         public void run() {
             while (running) {
                 try {
-                    pingManager.checkTimeouts();
-                    keepAlive();
-
-                    NetworkMessage message = packetQueue.poll(10, TimeUnit.MILLISECONDS);
-                    if (message == null) {
+                    PacketRingBuffer.Slot slot = packetQueue.poll();
+                    if (slot == null) {
+                        packetQueue.await(WAIT_NANOS);
                         continue;
                     }
-                    if (System.currentTimeMillis() - message.getTimestamp() > message.getTTL()) {
-                        CooldownTimer.run("ttl", () -> {
-                            Voicechat.LOGGER.warn("Dropping voice chat packets! Your Server might be overloaded!");
-                            Voicechat.LOGGER.warn("Packet queue has {} packets", packetQueue.size());
-                        });
-                        continue;
+                    try {
+                        process(slot);
+                    } finally {
+                        packetQueue.release();
+                        // Only the datagrams of a single packet are batched, so the fan-out is never delayed by other packets
+                        flush();
                     }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void process(PacketRingBuffer.Slot slot) throws Exception {
+            if (packetQueue.isMedia() && System.currentTimeMillis() - slot.getTimestamp() > MEDIA_TTL) {
+                onPacketDropped(getConnection(slot.getAddress()));
+                return;
+            }
+            NetworkMessage message;
+            try {
+                message = NetworkMessage.readPacketServer(slot.getBuffer(), slot.getAddress(), slot.getTimestamp(), Server.this);
+            } catch (Exception e) {
+                return;
+            }
+            try {
+                process(message);
+            } finally {
+                // Everything that was sent because of this message is already encrypted, so the message can be reused
+                message.recycle();
+            }
+        }
+
+        private void process(NetworkMessage message) throws Exception {
+            if (System.currentTimeMillis() - message.getTimestamp() > message.getTTL()) {
+                CooldownTimer.run("ttl", () -> {
+                    Voicechat.LOGGER.warn("Dropping voice chat packets! Your Server might be overloaded!");
+                    Voicechat.LOGGER.warn("Packet queue has {} control and {} media packets", packetQueue.getControlSize(), packetQueue.getMedia().size());
+                });
+                return;
+            }
 
-                    if (message.getPacket() instanceof AuthenticatePacket) {
-                        AuthenticatePacket packet = (AuthenticatePacket) message.getPacket();
-                        UUID secret = secrets.get(packet.getPlayerUUID());
-                        if (secret != null && secret.equals(packet.getSecret())) {
-                            ClientConnection connection;
-                            if (!connections.containsKey(packet.getPlayerUUID())) {
-                                connection = new ClientConnection(packet.getPlayerUUID(), message.getAddress());
-                                connections.put(packet.getPlayerUUID(), connection);
-                                Voicechat.LOGGER.info("Successfully authenticated player {}", packet.getPlayerUUID());
-                            } else {
-                                connection = connections.get(packet.getPlayerUUID());
-                            }
-                            sendPacket(new AuthenticateAckPacket(), connection);
+            if (message.getPacket() instanceof AuthenticatePacket) {
+                AuthenticatePacket packet = (AuthenticatePacket) message.getPacket();
+                UUID secret = secrets.get(packet.getPlayerUUID());
+                if (secret != null && secret.equals(packet.getSecret())) {
+                    ClientConnection connection;
+                    if (!connections.containsKey(packet.getPlayerUUID())) {
+                        int playerId = playerStateManager.getPlayerId(packet.getPlayerUUID());
+                        int protocolVersion = Math.min(packet.getProtocolVersion(), NetworkMessage.PROTOCOL_VERSION);
+                        // The compact protocol identifies the player by its session player ID
+                        if (playerId <= 0) {
+                            protocolVersion = Math.min(protocolVersion, NetworkMessage.AEAD_PROTOCOL);
                         }
+                        connection = new ClientConnection(packet.getPlayerUUID(), message.getAddress(), protocolVersion, playerId);
+                        connections.put(packet.getPlayerUUID(), connection);
+                        addressIndex.put(connection.getAddress(), connection);
+                        connection.setKeepAliveTask(scheduler.scheduleAtFixedRate(() -> keepAlive(connection), 0L, Voicechat.SERVER_CONFIG.keepAlive.get(), TimeUnit.MILLISECONDS));
+                        Voicechat.LOGGER.info("Successfully authenticated player {} with protocol version {}", packet.getPlayerUUID(), connection.getProtocolVersion());
+                    } else {
+                        connection = connections.get(packet.getPlayerUUID());
                     }
+                    // The client only switches to the negotiated protocol after receiving the acknowledgement
+                    connection.send(Server.this, new NetworkMessage(new AuthenticateAckPacket(connection.getProtocolVersion(), connection.getPlayerId())), NetworkMessage.LEGACY_PROTOCOL);
+                }
+            }
 
-                    UUID playerUUID = message.getSender(Server.this);
-                    if (playerUUID == null) {
-                        continue;
-                    }
+            UUID playerUUID = message.getSender(Server.this);
+            if (playerUUID == null) {
+                return;
+            }
 
-                    ClientConnection conn = connections.get(playerUUID);
+            ClientConnection conn = connections.get(playerUUID);
+            if (conn == null) {
+                return;
+            }
 
-                    if (message.getPacket() instanceof MicPacket) {
-                        MicPacket packet = (MicPacket) message.getPacket();
-                        ServerPlayer player = server.getPlayerList().getPlayer(playerUUID);
-                        if (player == null) {
-                            continue;
-                        }
-                        PlayerState state = playerStateManager.getState(playerUUID);
-                        if (state == null || !state.hasGroup()) {
-                            processProximityPacket(player, packet);
-                        } else {
-                            processGroupPacket(state, packet);
-                        }
-                    } else if (message.getPacket() instanceof PingPacket) {
-                        pingManager.onPongPacket((PingPacket) message.getPacket());
-                    } else if (message.getPacket() instanceof KeepAlivePacket) {
-                        conn.setLastKeepAliveResponse(System.currentTimeMillis());
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
+            if (message.getPacket() instanceof MicPacket) {
+                MicPacket packet = (MicPacket) message.getPacket();
+                if (isSilent(packet)) {
+                    conn.onSilentPacketSuppressed(packet.getDataLength());
+                    return;
                 }
+                Group group = groupManager.getPlayerGroup(playerUUID);
+                if (group == null) {
+                    processProximityPacket(playerUUID, packet, nearbyPlayers);
+                } else {
+                    processGroupPacket(playerUUID, group, packet);
+                }
+            } else if (message.getPacket() instanceof PingPacket) {
+                pingManager.onPongPacket((PingPacket) message.getPacket());
+            } else if (message.getPacket() instanceof KeepAlivePacket) {
+                conn.setLastKeepAliveResponse(System.currentTimeMillis());
+            } else if (message.getPacket() instanceof PacketLossPacket) {
+                PacketLossPacket packet = (PacketLossPacket) message.getPacket();
+                ClientConnection talking = connections.get(packet.getPlayer());
+                if (talking != null && talking.getProtocolVersion() >= NetworkMessage.AEAD_PROTOCOL) {
+                    talking.send(Server.this, new NetworkMessage(new PacketLossPacket(playerUUID, packet.getLossPercentage())));
+                }
+            }
+        }
+
+        public void send(ClientConnection connection, NetworkMessage message, int protocolVersion) throws Exception {
+            DatagramChannel channel = getChannel(id);
+            if (channel == null) {
+                return;
+            }
+            outboundQueue.add(channel, Server.this, connection, message, protocolVersion);
+        }
+
+        private void flush() {
+            DatagramChannel channel = getChannel(id);
+            if (channel != null) {
+                outboundQueue.flush(channel);
             }
         }
 
+        private boolean isWorkerOf(Server server) {
+            return Server.this == server;
+        }
+
         public void close() {
             running = false;
         }
     }
 
-    private void processGroupPacket(PlayerState player, MicPacket packet) throws Exception {
-        String group = player.getGroup();
-        NetworkMessage soundMessage = new NetworkMessage(new SoundPacket(player.getGameProfile().getId(), packet.getData(), packet.getSequenceNumber()));
-        for (PlayerState state : playerStateManager.getStates()) {
-            if (!group.equals(state.getGroup())) {
-                continue;
-            }
-            if (player.getGameProfile().getId().equals(state.getGameProfile().getId())) {
-                continue;
+    /**
+     * @param packet the microphone packet
+     * @return if the packet should not be forwarded, because its audio level is below the silence threshold
+     */
+    private boolean isSilent(MicPacket packet) {
+        if (!Voicechat.SERVER_CONFIG.suppressSilence.get() || !packet.hasAudioLevel()) {
+            return false;
+        }
+        return packet.getAudioLevel() < Voicechat.SERVER_CONFIG.silenceThreshold.get();
+    }
+
+    private void processGroupPacket(UUID playerUUID, Group group, MicPacket packet) throws Exception {
+        int playerId = playerStateManager.getPlayerId(playerUUID);
+        NetworkMessage soundMessage = NetworkMessage.obtain(PacketRegistry.create(SoundPacket.class).set(playerUUID, playerId, packet));
+        NetworkMessage uuidMessage = null;
+        try {
+            for (UUID member : group.getMembers()) {
+                if (playerUUID.equals(member)) {
+                    continue;
+                }
+                ClientConnection connection = connections.get(member);
+                if (connection != null) {
+                    uuidMessage = sendSound(connection, playerUUID, playerId, packet, soundMessage, uuidMessage);
+                }
             }
-            ClientConnection connection = connections.get(state.getGameProfile().getId());
-            if (connection != null) {
-                connection.send(this, soundMessage);
+        } finally {
+            soundMessage.recycle();
+            if (uuidMessage != null) {
+                uuidMessage.recycle();
             }
         }
     }
 
-    private void processProximityPacket(Player player, MicPacket packet) throws Exception {
+    private void processProximityPacket(UUID playerUUID, MicPacket packet, List<PlayerPositionIndex.PlayerPosition> nearbyPlayers) throws Exception {
         double distance = Voicechat.SERVER_CONFIG.voiceChatDistance.get();
-        List<ClientConnection> closeConnections = player.level
-                .getEntitiesOfClass(
-                        Player.class,
-                        new AABB(
-                                player.getX() - distance,
-                                player.getY() - distance,
-                                player.getZ() - distance,
-                                player.getX() + distance,
-                                player.getY() + distance,
-                                player.getZ() + distance
-                        )
-                        , playerEntity -> !playerEntity.getUUID().equals(player.getUUID())
-                )
-                .stream()
-                .map(playerEntity -> connections.get(playerEntity.getUUID()))
-                .filter(Objects::nonNull)
-                .collect(Collectors.toList());
-        NetworkMessage soundMessage = new NetworkMessage(new SoundPacket(player.getUUID(), packet.getData(), packet.getSequenceNumber()));
-        for (ClientConnection clientConnection : closeConnections) {
-            if (!clientConnection.getPlayerUUID().equals(player.getUUID())) {
-                clientConnection.send(this, soundMessage);
+        nearbyPlayers.clear();
+        if (!playerPositionIndex.getNearbyPlayers(playerUUID, distance, nearbyPlayers)) {
+            return;
+        }
+        int playerId = playerStateManager.getPlayerId(playerUUID);
+        NetworkMessage soundMessage = NetworkMessage.obtain(PacketRegistry.create(SoundPacket.class).set(playerUUID, playerId, packet));
+        NetworkMessage uuidMessage = null;
+        try {
+            for (PlayerPositionIndex.PlayerPosition position : nearbyPlayers) {
+                ClientConnection clientConnection = connections.get(position.getUUID());
+                if (clientConnection != null) {
+                    uuidMessage = sendSound(clientConnection, playerUUID, playerId, packet, soundMessage, uuidMessage);
+                }
             }
+        } finally {
+            soundMessage.recycle();
+            if (uuidMessage != null) {
+                uuidMessage.recycle();
+            }
+        }
+        nearbyPlayers.clear();
+    }
+
+    /**
+     * Sends the sound message to the receiving connection
+     * If the receiver doesn't know the session player ID of the sender yet, the audio is sent with the UUID of the sender instead
+     * and the state of the sender is sent to the receiver with the next tick
+     *
+     * @param connection   the receiving connection
+     * @param playerUUID   the sender
+     * @param playerId     the session player ID of the sender
+     * @param packet       the microphone packet
+     * @param soundMessage the sound message with the session player ID of the sender
+     * @param uuidMessage  the sound message with the UUID of the sender or null if it wasn't needed yet
+     * @return the sound message with the UUID of the sender or null if it wasn't needed yet
+     * @throws Exception if the message could not be sent
+     */
+    @Nullable
+    private NetworkMessage sendSound(ClientConnection connection, UUID playerUUID, int playerId, MicPacket packet, NetworkMessage soundMessage, @Nullable NetworkMessage uuidMessage) throws Exception {
+        if (playerId <= 0 || connection.getProtocolVersion() < NetworkMessage.COMPACT_PROTOCOL || playerStateManager.knowsPlayerId(connection.getPlayerUUID(), playerUUID)) {
+            connection.send(this, soundMessage);
+            return uuidMessage;
+        }
+        playerStateManager.requestState(connection.getPlayerUUID(), playerUUID);
+        if (uuidMessage == null) {
+            uuidMessage = NetworkMessage.obtain(PacketRegistry.create(SoundPacket.class).set(playerUUID, 0, packet));
         }
+        connection.send(this, uuidMessage);
+        return uuidMessage;
     }
 
-    private void keepAlive() throws Exception {
-        long timestamp = System.currentTimeMillis();
-        KeepAlivePacket keepAlive = new KeepAlivePacket();
-        List<UUID> connectionsToDrop = new ArrayList<>(connections.size());
-        for (ClientConnection connection : connections.values()) {
-            if (timestamp - connection.getLastKeepAliveResponse() >= Voicechat.SERVER_CONFIG.keepAlive.get() * 10L) {
-                connectionsToDrop.add(connection.getPlayerUUID());
-            } else if (timestamp - connection.getLastKeepAlive() >= Voicechat.SERVER_CONFIG.keepAlive.get()) {
+    /**
+     * Called by the timer thread once every keep alive interval for each connection
+     * Sends a keep alive packet or drops the connection if the client didn't respond for 10 intervals
+     *
+     * @param connection the connection
+     */
+    private void keepAlive(ClientConnection connection) {
+        try {
+            if (connections.get(connection.getPlayerUUID()) != connection) {
+                connection.cancelKeepAlive();
+                return;
+            }
+            long timestamp = System.currentTimeMillis();
+            if (timestamp - connection.getLastKeepAliveResponse() < Voicechat.SERVER_CONFIG.keepAlive.get() * 10L) {
                 connection.setLastKeepAlive(timestamp);
-                sendPacket(keepAlive, connection);
+                sendPacket(new KeepAlivePacket(), connection);
+                return;
             }
-        }
-        for (UUID uuid : connectionsToDrop) {
+            UUID uuid = connection.getPlayerUUID();
             disconnectClient(uuid);
             Voicechat.LOGGER.info("Player {} timed out", uuid);
             ServerPlayer player = server.getPlayerList().getPlayer(uuid);
@@ -244,8 +536,10 @@ public class Server extends Thread {
                 Voicechat.LOGGER.info("Reconnecting player {}", player.getDisplayName().getString());
                 Voicechat.SERVER.initializePlayerConnection(player);
             } else {
-                Voicechat.LOGGER.warn("Reconnecting player {} failed (Could not find player)", player.getDisplayName().getString());
+                Voicechat.LOGGER.warn("Reconnecting player {} failed (Could not find player)", uuid);
             }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
@@ -253,19 +547,90 @@ public class Server extends Thread {
         return connections;
     }
 
-    public DatagramSocket getSocket() {
-        return socket;
+    @Nullable
+    public ClientConnection getConnection(SocketAddress address) {
+        return addressIndex.get(address);
+    }
+
+    /**
+     * @return the first channel or null if the server is not bound yet or got closed
+     */
+    @Nullable
+    public DatagramChannel getChannel() {
+        return getChannel(0);
+    }
+
+    @Nullable
+    private DatagramChannel getChannel(int index) {
+        DatagramChannel[] c = channels;
+        if (c == null) {
+            return null;
+        }
+        return c[index % c.length];
+    }
+
+    /**
+     * Sends the message to the provided connection
+     * Messages sent from a worker thread get queued and sent in a batch once the worker processed the current packet
+     *
+     * @param connection      the receiving connection
+     * @param message         the message
+     * @param protocolVersion the protocol version
+     * @return false if the current thread is not a worker of this server
+     */
+    public boolean sendBatched(ClientConnection connection, NetworkMessage message, int protocolVersion) throws Exception {
+        Thread thread = Thread.currentThread();
+        if (!(thread instanceof Worker)) {
+            return false;
+        }
+        Worker worker = (Worker) thread;
+        if (!worker.isWorkerOf(this)) {
+            return false;
+        }
+        worker.send(connection, message, protocolVersion);
+        return true;
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    public PacketLanes getPacketLanes(int worker) {
+        return workers[worker].packetQueue;
+    }
+
+    public OutboundQueue getOutboundQueue(int worker) {
+        return workers[worker].outboundQueue;
     }
 
     public void sendPacket(Packet<?> packet, ClientConnection connection) throws Exception {
         connection.send(this, new NetworkMessage(packet));
     }
 
+    /**
+     * @return the configured frame duration in milliseconds, rounded down to one that is supported by Opus
+     */
+    public int getFrameDuration() {
+        return frameDuration;
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
     public PingManager getPingManager() {
         return pingManager;
     }
 
+    public GroupManager getGroupManager() {
+        return groupManager;
+    }
+
     public PlayerStateManager getPlayerStateManager() {
         return playerStateManager;
     }
+
+    public PlayerPositionIndex getPlayerPositionIndex() {
+        return playerPositionIndex;
+    }
 }
\ No newline at end of file
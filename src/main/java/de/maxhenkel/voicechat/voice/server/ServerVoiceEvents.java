@@ -5,7 +5,9 @@ import de.maxhenkel.voicechat.config.ServerConfig;
 import de.maxhenkel.voicechat.events.PlayerEvents;
 import de.maxhenkel.voicechat.net.InitPacket;
 import de.maxhenkel.voicechat.net.NetManager;
+import de.maxhenkel.voicechat.voice.common.NetworkMessage;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.dedicated.DedicatedServer;
 import net.minecraft.server.level.ServerPlayer;
@@ -19,6 +21,7 @@ public class ServerVoiceEvents {
 
     public ServerVoiceEvents() {
         ServerLifecycleEvents.SERVER_STARTED.register(this::serverStarting);
+        ServerTickEvents.END_SERVER_TICK.register(this::serverTick);
         PlayerEvents.PLAYER_LOGGED_IN.register(this::initializePlayerConnection);
         PlayerEvents.PLAYER_LOGGED_OUT.register(this::playerLoggedOut);
     }
@@ -38,13 +41,20 @@ public class ServerVoiceEvents {
         }
     }
 
+    public void serverTick(MinecraftServer mcServer) {
+        if (server == null) {
+            return;
+        }
+        server.tick();
+    }
+
     public void initializePlayerConnection(ServerPlayer player) {
         if (server == null) {
             return;
         }
 
         UUID secret = server.getSecret(player.getUUID());
-        NetManager.sendToClient(player, new InitPacket(secret, Voicechat.SERVER_CONFIG.voiceChatPort.get(), (ServerConfig.Codec) Voicechat.SERVER_CONFIG.voiceChatCodec.get(), Voicechat.SERVER_CONFIG.voiceChatMtuSize.get(), Voicechat.SERVER_CONFIG.voiceChatDistance.get(), Voicechat.SERVER_CONFIG.voiceChatFadeDistance.get(), Voicechat.SERVER_CONFIG.keepAlive.get(), Voicechat.SERVER_CONFIG.groupsEnabled.get()));
+        NetManager.sendToClient(player, new InitPacket(secret, Voicechat.SERVER_CONFIG.voiceChatPort.get(), (ServerConfig.Codec) Voicechat.SERVER_CONFIG.voiceChatCodec.get(), Voicechat.SERVER_CONFIG.voiceChatMtuSize.get(), Voicechat.SERVER_CONFIG.voiceChatDistance.get(), Voicechat.SERVER_CONFIG.voiceChatFadeDistance.get(), Voicechat.SERVER_CONFIG.keepAlive.get(), Voicechat.SERVER_CONFIG.groupsEnabled.get(), NetworkMessage.PROTOCOL_VERSION, Voicechat.SERVER_CONFIG.bitrate.get(), Voicechat.SERVER_CONFIG.complexity.get(), Voicechat.SERVER_CONFIG.vbr.get(), Voicechat.SERVER_CONFIG.dtx.get(), server.getFrameDuration(), Voicechat.SERVER_CONFIG.suppressSilence.get(), Voicechat.SERVER_CONFIG.silenceThreshold.get()));
         Voicechat.LOGGER.info("Sent secret to " + player.getDisplayName().getString());
     }
 
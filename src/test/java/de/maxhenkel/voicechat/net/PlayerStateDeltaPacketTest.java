@@ -0,0 +1,139 @@
+package de.maxhenkel.voicechat.net;
+
+import com.mojang.authlib.GameProfile;
+import de.maxhenkel.voicechat.voice.common.PlayerState;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.FriendlyByteBuf;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PlayerStateDeltaPacketTest {
+
+    @Test
+    public void roundTrip() {
+        PlayerState joined = state("joined", false, false, "group");
+        PlayerState disabled = state("disabled", true, false, "other");
+        PlayerState left = state("left", false, false, null);
+        PlayerState disconnected = state("disconnected", false, true, null);
+
+        List<PlayerStateDeltaPacket.Delta> deltas = writeAndRead(
+                new PlayerStateDeltaPacket.Delta(joined, true, true, 3),
+                new PlayerStateDeltaPacket.Delta(disabled, false, false, 4),
+                new PlayerStateDeltaPacket.Delta(left, true, false, 0),
+                new PlayerStateDeltaPacket.Delta(disconnected, false, false, 0)
+        );
+        assertEquals(4, deltas.size());
+
+        PlayerStateDeltaPacket.Delta delta = deltas.get(0);
+        assertEquals(joined.getGameProfile().getId(), delta.getPlayer());
+        assertFalse(delta.isDisabled());
+        assertFalse(delta.isDisconnected());
+        assertTrue(delta.isGroupChanged());
+        assertEquals("group", delta.getGroup());
+        assertNotNull(delta.getGameProfile());
+        assertEquals(joined.getGameProfile().getId(), delta.getGameProfile().getId());
+        assertEquals("joined", delta.getGameProfile().getName());
+        assertEquals(3, delta.getPlayerId());
+
+        delta = deltas.get(1);
+        assertEquals(disabled.getGameProfile().getId(), delta.getPlayer());
+        assertTrue(delta.isDisabled());
+        assertFalse(delta.isGroupChanged());
+        assertNull(delta.getGroup());
+        assertNull(delta.getGameProfile());
+        assertEquals(0, delta.getPlayerId());
+
+        delta = deltas.get(2);
+        assertEquals(left.getGameProfile().getId(), delta.getPlayer());
+        assertTrue(delta.isGroupChanged());
+        assertNull(delta.getGroup());
+
+        delta = deltas.get(3);
+        assertEquals(disconnected.getGameProfile().getId(), delta.getPlayer());
+        assertTrue(delta.isDisconnected());
+        assertFalse(delta.isDisabled());
+    }
+
+    @Test
+    public void removal() {
+        UUID player = UUID.randomUUID();
+        List<PlayerStateDeltaPacket.Delta> deltas = writeAndRead(new PlayerStateDeltaPacket.Delta(player));
+        assertEquals(1, deltas.size());
+
+        PlayerStateDeltaPacket.Delta delta = deltas.get(0);
+        assertEquals(player, delta.getPlayer());
+        assertTrue(delta.isRemoved());
+        assertTrue(delta.isDisconnected());
+        assertFalse(delta.isGroupChanged());
+        assertNull(delta.getGameProfile());
+
+        PlayerState known = state("player", false, false, "group");
+        PlayerState applied = delta.apply(known);
+        assertNotNull(applied);
+        assertTrue(applied.isDisconnected());
+        assertEquals("group", applied.getGroup());
+    }
+
+    @Test
+    public void ignoresUnknownFormatVersion() {
+        FriendlyByteBuf buf = new FriendlyByteBuf(Unpooled.buffer());
+        buf.writeByte(PlayerStateDeltaPacket.FORMAT_VERSION + 1);
+        buf.writeVarInt(1);
+        buf.writeUUID(UUID.randomUUID());
+
+        PlayerStateDeltaPacket packet = new PlayerStateDeltaPacket().fromBytes(buf);
+        assertTrue(packet.getDeltas().isEmpty());
+        assertEquals(0, buf.readableBytes());
+    }
+
+    @Test
+    public void applyWithoutKnownState() {
+        PlayerState state = state("player", true, false, "group");
+
+        assertNull(new PlayerStateDeltaPacket.Delta(state, true, false, 0).apply(null));
+
+        PlayerState applied = new PlayerStateDeltaPacket.Delta(state, true, true, 1).apply(null);
+        assertNotNull(applied);
+        assertTrue(applied.isDisabled());
+        assertFalse(applied.isDisconnected());
+        assertEquals("group", applied.getGroup());
+        assertEquals(state.getGameProfile(), applied.getGameProfile());
+    }
+
+    @Test
+    public void applyKeepsGroupIfUnchanged() {
+        PlayerState known = state("player", false, false, "group");
+        PlayerState changed = known.copy();
+        changed.setDisabled(true);
+        changed.setGroup(null);
+
+        PlayerState applied = new PlayerStateDeltaPacket.Delta(changed, false, false, 0).apply(known.copy());
+        assertNotNull(applied);
+        assertTrue(applied.isDisabled());
+        assertEquals("group", applied.getGroup());
+
+        applied = new PlayerStateDeltaPacket.Delta(changed, true, false, 0).apply(known.copy());
+        assertNotNull(applied);
+        assertNull(applied.getGroup());
+    }
+
+    private static List<PlayerStateDeltaPacket.Delta> writeAndRead(PlayerStateDeltaPacket.Delta... deltas) {
+        FriendlyByteBuf buf = new FriendlyByteBuf(Unpooled.buffer());
+        new PlayerStateDeltaPacket(Arrays.asList(deltas)).toBytes(buf);
+        List<PlayerStateDeltaPacket.Delta> result = new PlayerStateDeltaPacket().fromBytes(buf).getDeltas();
+        assertEquals(0, buf.readableBytes());
+        return result;
+    }
+
+    private static PlayerState state(String name, boolean disabled, boolean disconnected, String group) {
+        PlayerState state = new PlayerState(disabled, disconnected, new GameProfile(UUID.randomUUID(), name));
+        state.setGroup(group);
+        return state;
+    }
+
+}
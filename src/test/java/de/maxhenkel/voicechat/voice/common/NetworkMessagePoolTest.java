@@ -0,0 +1,80 @@
+package de.maxhenkel.voicechat.voice.common;
+
+import net.minecraft.network.FriendlyByteBuf;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the messages and packets of the forward path are returned to the pools of the current thread and reused
+ * This is the same path as {@code NetworkMessageBenchmark#pooledForward}, without the encryption
+ */
+public class NetworkMessagePoolTest {
+
+    private final SocketAddress address = new InetSocketAddress("127.0.0.1", 24454);
+    private final UUID sender = UUID.randomUUID();
+    private byte[] frame;
+    private ByteBuffer plaintext;
+    private int plaintextLength;
+
+    @BeforeEach
+    public void setUp() {
+        frame = new byte[80];
+        new Random(0L).nextBytes(frame);
+        FriendlyByteBuf body = new NetworkMessage(new MicPacket(frame, 1_000L, -30D)).getBody(NetworkMessage.COMPACT_PROTOCOL);
+        plaintextLength = body.readableBytes();
+        plaintext = ByteBuffer.allocate(NetworkMessage.MAX_PACKET_SIZE);
+        body.getBytes(body.readerIndex(), plaintext.array(), 0, plaintextLength);
+    }
+
+    @Test
+    public void forwardReusesPooledObjects() throws Exception {
+        NetworkMessage message = read();
+        MicPacket micPacket = (MicPacket) message.getPacket();
+        NetworkMessage soundMessage = NetworkMessage.obtain(PacketRegistry.create(SoundPacket.class).set(sender, 1, micPacket));
+        Packet<?> soundPacket = soundMessage.getPacket();
+        assertEquals(new NetworkMessage(new SoundPacket(sender, 1, new MicPacket(frame, 1_000L, -30D))).getBody(NetworkMessage.COMPACT_PROTOCOL).readableBytes(), soundMessage.getBody(NetworkMessage.COMPACT_PROTOCOL).readableBytes());
+        soundMessage.recycle();
+        message.recycle();
+
+        NetworkMessage nextMessage = read();
+        assertSame(message, nextMessage);
+        assertSame(micPacket, nextMessage.getPacket());
+        NetworkMessage nextSoundMessage = NetworkMessage.obtain(PacketRegistry.create(SoundPacket.class).set(sender, 1, (MicPacket) nextMessage.getPacket()));
+        assertSame(soundMessage, nextSoundMessage);
+        assertSame(soundPacket, nextSoundMessage.getPacket());
+        nextSoundMessage.recycle();
+        nextMessage.recycle();
+    }
+
+    @Test
+    public void replayedMessageIsRecycled() throws Exception {
+        ReplayWindow replayWindow = new ReplayWindow();
+        NetworkMessage message = read();
+        NetworkMessage.acceptCounter(message, replayWindow, 1L);
+        message.recycle();
+
+        NetworkMessage replayed = read();
+        Packet<?> packet = replayed.getPacket();
+        assertThrows(InvalidKeyException.class, () -> NetworkMessage.acceptCounter(replayed, replayWindow, 1L));
+
+        NetworkMessage next = read();
+        assertSame(replayed, next);
+        assertSame(packet, next.getPacket());
+        next.recycle();
+    }
+
+    private NetworkMessage read() throws Exception {
+        plaintext.position(0).limit(plaintextLength);
+        return NetworkMessage.readPacket(address, 0L, NetworkMessage.COMPACT_PROTOCOL, plaintext);
+    }
+
+}
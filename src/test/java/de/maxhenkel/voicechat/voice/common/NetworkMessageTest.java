@@ -0,0 +1,182 @@
+package de.maxhenkel.voicechat.voice.common;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NetworkMessageTest {
+
+    private static final SocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 24454);
+    private static final byte[] AUDIO = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+    private final UUID playerUUID = UUID.randomUUID();
+    private final UUID secret = UUID.randomUUID();
+    private final SecretKeySpec key = AES.createKeySpec(secret);
+
+    @Test
+    public void legacyRoundTrip() throws Exception {
+        UUID pingId = UUID.randomUUID();
+        ByteBuffer datagram = ByteBuffer.allocate(NetworkMessage.MAX_PACKET_SIZE);
+        new NetworkMessage(new PingPacket(pingId, 1234L)).write(secret, key, datagram);
+        datagram.flip();
+
+        NetworkMessage message = NetworkMessage.readFromBytes(ADDRESS, 0L, secret, key, datagram);
+        assertTrue(message.getPacket() instanceof PingPacket);
+        PingPacket packet = (PingPacket) message.getPacket();
+        assertEquals(pingId, packet.getId());
+        assertEquals(1234L, packet.getTimestamp());
+        assertEquals(ADDRESS, message.getAddress());
+    }
+
+    @Test
+    public void legacyRejectsWrongSecret() throws Exception {
+        ByteBuffer datagram = ByteBuffer.allocate(NetworkMessage.MAX_PACKET_SIZE);
+        new NetworkMessage(new KeepAlivePacket()).write(secret, key, datagram);
+        datagram.flip();
+
+        assertThrows(InvalidKeyException.class, () -> NetworkMessage.readFromBytes(ADDRESS, 0L, UUID.randomUUID(), key, datagram));
+    }
+
+    @Test
+    public void aeadRoundTrip() throws Exception {
+        ByteBuffer datagram = writeAEADClient(new MicPacket(AUDIO, 42L, -30D), 7L);
+        assertTrue(NetworkMessage.isMediaPacket(datagram, false));
+
+        assertEquals(playerUUID, new UUID(datagram.getLong(), datagram.getLong()));
+        assertEquals(0, datagram.get());
+        assertTrue(PacketRegistry.isType(datagram.get(), MicPacket.class));
+        long counter = datagram.getLong();
+        assertEquals(7L, counter);
+
+        NetworkMessage message = NetworkMessage.readAEAD(ADDRESS, 0L, key, NetworkMessage.CLIENT_TO_SERVER, counter, NetworkMessage.AEAD_PROTOCOL, datagram.array(), 0, 18, datagram);
+        assertMicPacket(message.getPacket());
+    }
+
+    @Test
+    public void aeadRejectsModifiedHeader() throws Exception {
+        ByteBuffer datagram = writeAEADClient(new MicPacket(AUDIO, 42L, -30D), 7L);
+        datagram.put(17, PacketRegistry.getId(new KeepAlivePacket()));
+        datagram.position(18);
+
+        assertThrows(AEADBadTagException.class, () -> NetworkMessage.readAEAD(ADDRESS, 0L, key, NetworkMessage.CLIENT_TO_SERVER, 7L, NetworkMessage.AEAD_PROTOCOL, datagram.array(), 0, 18, datagram));
+    }
+
+    @Test
+    public void aeadRejectsWrongCounterAndDirection() throws Exception {
+        ByteBuffer datagram = writeAEADClient(new MicPacket(AUDIO, 42L, -30D), 7L);
+        datagram.position(18);
+        assertThrows(AEADBadTagException.class, () -> NetworkMessage.readAEAD(ADDRESS, 0L, key, NetworkMessage.CLIENT_TO_SERVER, 8L, NetworkMessage.AEAD_PROTOCOL, datagram.array(), 0, 18, datagram));
+
+        datagram.position(18);
+        assertThrows(AEADBadTagException.class, () -> NetworkMessage.readAEAD(ADDRESS, 0L, key, NetworkMessage.SERVER_TO_CLIENT, 7L, NetworkMessage.AEAD_PROTOCOL, datagram.array(), 0, 18, datagram));
+    }
+
+    @Test
+    public void compactRoundTrip() throws Exception {
+        NetworkMessage sent = new NetworkMessage(new MicPacket(AUDIO, 42L, -30D));
+        ByteBuffer datagram = ByteBuffer.allocate(NetworkMessage.MAX_PACKET_SIZE);
+        NetworkMessage.writeVarInt(datagram, 300);
+        datagram.put(sent.getBody(NetworkMessage.COMPACT_PROTOCOL).getByte(0));
+        NetworkMessage.writeVarLong(datagram, 1_000_000L);
+        int headerLength = datagram.position();
+        sent.writeAEAD(key, NetworkMessage.CLIENT_TO_SERVER, 1_000_000L, NetworkMessage.COMPACT_PROTOCOL, datagram.array(), 0, headerLength, datagram);
+        datagram.flip();
+        assertTrue(NetworkMessage.isMediaPacket(datagram, true));
+
+        assertEquals(300, NetworkMessage.readVarInt(datagram));
+        assertTrue(PacketRegistry.isType(datagram.get(), MicPacket.class));
+        long counter = NetworkMessage.readVarLong(datagram);
+        assertEquals(1_000_000L, counter);
+        assertEquals(headerLength, datagram.position());
+
+        NetworkMessage message = NetworkMessage.readAEAD(ADDRESS, 0L, key, NetworkMessage.CLIENT_TO_SERVER, counter, NetworkMessage.COMPACT_PROTOCOL, datagram.array(), 0, headerLength, datagram);
+        assertMicPacket(message.getPacket());
+    }
+
+    @Test
+    public void compactSoundPacketUsesTheSessionPlayerId() throws Exception {
+        MicPacket micPacket = new MicPacket(AUDIO, 42L, -30D);
+        ByteBuffer datagram = ByteBuffer.allocate(NetworkMessage.MAX_PACKET_SIZE);
+        NetworkMessage.writeVarLong(datagram, 5L);
+        new NetworkMessage(new SoundPacket(playerUUID, 12, micPacket)).writeAEAD(key, NetworkMessage.SERVER_TO_CLIENT, 5L, NetworkMessage.COMPACT_PROTOCOL, null, 0, 0, datagram);
+        datagram.flip();
+
+        long counter = NetworkMessage.readVarLong(datagram);
+        NetworkMessage message = NetworkMessage.readAEAD(ADDRESS, 0L, key, NetworkMessage.SERVER_TO_CLIENT, counter, NetworkMessage.COMPACT_PROTOCOL, null, 0, 0, datagram);
+        assertTrue(message.getPacket() instanceof SoundPacket);
+        SoundPacket packet = (SoundPacket) message.getPacket();
+        assertNull(packet.getSender());
+        assertEquals(12, packet.getSenderId());
+        assertArrayEquals(AUDIO, packet.getData());
+        assertEquals(42L, packet.getSequenceNumber());
+        assertEquals(-30D, packet.getAudioLevel());
+    }
+
+    @Test
+    public void varIntRoundTrip() throws Exception {
+        int[] values = {0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        for (int value : values) {
+            buffer.clear();
+            NetworkMessage.writeVarInt(buffer, value);
+            buffer.flip();
+            assertEquals(value, NetworkMessage.readVarInt(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    public void varLongRoundTrip() throws Exception {
+        long[] values = {0L, 1L, 127L, 128L, 1L << 35, Long.MAX_VALUE, -1L, Long.MIN_VALUE};
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        for (long value : values) {
+            buffer.clear();
+            NetworkMessage.writeVarLong(buffer, value);
+            buffer.flip();
+            assertEquals(value, NetworkMessage.readVarLong(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    public void rejectsTooLongVarInt() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{-1, -1, -1, -1, -1, 1});
+        assertThrows(IOException.class, () -> NetworkMessage.readVarInt(buffer));
+    }
+
+    /**
+     * Writes the message with the AEAD header the client uses before the compact protocol
+     */
+    private ByteBuffer writeAEADClient(Packet<?> packet, long counter) throws Exception {
+        NetworkMessage message = new NetworkMessage(packet);
+        ByteBuffer datagram = ByteBuffer.allocate(NetworkMessage.MAX_PACKET_SIZE);
+        datagram.putLong(playerUUID.getMostSignificantBits());
+        datagram.putLong(playerUUID.getLeastSignificantBits());
+        datagram.put((byte) 0);
+        datagram.put(message.getBody(NetworkMessage.AEAD_PROTOCOL).getByte(0));
+        datagram.putLong(counter);
+        message.writeAEAD(key, NetworkMessage.CLIENT_TO_SERVER, counter, NetworkMessage.AEAD_PROTOCOL, datagram.array(), 0, 18, datagram);
+        datagram.flip();
+        return datagram;
+    }
+
+    private static void assertMicPacket(Packet<?> p) {
+        assertTrue(p instanceof MicPacket);
+        MicPacket packet = (MicPacket) p;
+        assertArrayEquals(AUDIO, packet.getData());
+        assertEquals(AUDIO.length, packet.getDataLength());
+        assertEquals(42L, packet.getSequenceNumber());
+        assertTrue(packet.hasAudioLevel());
+        assertEquals(-30D, packet.getAudioLevel());
+    }
+
+}
@@ -0,0 +1,68 @@
+package de.maxhenkel.voicechat.voice.common;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReplayWindowTest {
+
+    @Test
+    public void acceptsIncreasingCounters() {
+        ReplayWindow window = new ReplayWindow();
+        for (long counter = 0L; counter < 200L; counter++) {
+            assertTrue(window.accept(counter));
+        }
+    }
+
+    @Test
+    public void rejectsReplayedCounters() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(window.accept(0L));
+        assertTrue(window.accept(1L));
+        assertFalse(window.accept(0L));
+        assertFalse(window.accept(1L));
+    }
+
+    @Test
+    public void acceptsReorderedCountersOnce() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(window.accept(10L));
+        assertTrue(window.accept(5L));
+        assertTrue(window.accept(9L));
+        assertFalse(window.accept(5L));
+        assertFalse(window.accept(9L));
+        assertTrue(window.accept(11L));
+        assertFalse(window.accept(10L));
+    }
+
+    @Test
+    public void rejectsCountersOutsideOfTheWindow() {
+        ReplayWindow window = new ReplayWindow();
+        assertTrue(window.accept(100L));
+        assertFalse(window.accept(36L));
+        assertTrue(window.accept(37L));
+        assertFalse(window.accept(37L));
+    }
+
+    @Test
+    public void clearsTheWindowOnLargeJumps() {
+        ReplayWindow window = new ReplayWindow();
+        for (long counter = 0L; counter < 64L; counter++) {
+            assertTrue(window.accept(counter));
+        }
+        assertTrue(window.accept(1_000L));
+        assertTrue(window.accept(999L));
+        assertTrue(window.accept(937L));
+        assertFalse(window.accept(936L));
+        assertFalse(window.accept(63L));
+    }
+
+    @Test
+    public void rejectsNegativeCounters() {
+        ReplayWindow window = new ReplayWindow();
+        assertFalse(window.accept(-1L));
+        assertTrue(window.accept(0L));
+    }
+
+}
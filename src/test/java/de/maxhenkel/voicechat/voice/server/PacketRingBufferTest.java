@@ -0,0 +1,128 @@
+package de.maxhenkel.voicechat.voice.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PacketRingBufferTest {
+
+    private static final SocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 24454);
+
+    @Test
+    public void roundsUpTheCapacity() {
+        assertEquals(2, new PacketRingBuffer(1).getCapacity());
+        assertEquals(4, new PacketRingBuffer(4).getCapacity());
+        assertEquals(8, new PacketRingBuffer(5).getCapacity());
+    }
+
+    @Test
+    public void emptyBuffer() {
+        PacketRingBuffer buffer = new PacketRingBuffer(4);
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.poll());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void rejectsDatagramsWhenFull() {
+        PacketRingBuffer buffer = new PacketRingBuffer(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(ADDRESS, datagram(i), i));
+        }
+        assertFalse(buffer.offer(ADDRESS, datagram(4), 4L));
+        assertEquals(4, buffer.size());
+
+        assertSlot(buffer.poll(), 0);
+        assertFalse(buffer.offer(ADDRESS, datagram(4), 4L));
+        buffer.release();
+        assertTrue(buffer.offer(ADDRESS, datagram(4), 4L));
+        assertFalse(buffer.offer(ADDRESS, datagram(5), 5L));
+    }
+
+    @Test
+    public void evictsTheOldestDatagram() {
+        PacketRingBuffer buffer = new PacketRingBuffer(4);
+        assertNull(buffer.evictOldest());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(ADDRESS, datagram(i), i));
+        }
+        assertEquals(ADDRESS, buffer.evictOldest());
+        assertTrue(buffer.offer(ADDRESS, datagram(4), 4L));
+        assertEquals(4, buffer.size());
+
+        for (int i = 1; i <= 4; i++) {
+            assertSlot(buffer.poll(), i);
+            buffer.release();
+        }
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    public void doesNotEvictTheClaimedSlot() {
+        PacketRingBuffer buffer = new PacketRingBuffer(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(ADDRESS, datagram(i), i));
+        }
+        PacketRingBuffer.Slot slot = buffer.poll();
+        assertNull(buffer.evictOldest());
+        assertFalse(buffer.offer(ADDRESS, datagram(4), 4L));
+        assertSlot(slot, 0);
+        buffer.release();
+
+        assertTrue(buffer.offer(ADDRESS, datagram(4), 4L));
+        assertEquals(ADDRESS, buffer.evictOldest());
+        assertSlot(buffer.poll(), 2);
+    }
+
+    @Test
+    public void keepsTheOrderWhenWrappingAround() {
+        PacketRingBuffer buffer = new PacketRingBuffer(4);
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(buffer.offer(ADDRESS, datagram(next), next));
+                next++;
+            }
+            for (int i = 0; i < 3; i++) {
+                assertFalse(buffer.isEmpty());
+                assertSlot(buffer.poll(), expected++);
+                buffer.release();
+            }
+            assertTrue(buffer.isEmpty());
+        }
+    }
+
+    @Test
+    public void copiesTheDatagram() {
+        PacketRingBuffer buffer = new PacketRingBuffer(4);
+        ByteBuffer datagram = datagram(1);
+        assertTrue(buffer.offer(ADDRESS, datagram, 1L));
+        assertFalse(datagram.hasRemaining());
+        datagram.clear();
+        datagram.putInt(0, 2);
+        assertSlot(buffer.poll(), 1);
+    }
+
+    private static ByteBuffer datagram(int value) {
+        ByteBuffer datagram = ByteBuffer.allocate(8);
+        datagram.putInt(value);
+        datagram.putInt(~value);
+        datagram.flip();
+        return datagram;
+    }
+
+    private static void assertSlot(PacketRingBuffer.Slot slot, int value) {
+        assertNotNull(slot);
+        assertEquals(ADDRESS, slot.getAddress());
+        assertEquals(value, slot.getTimestamp());
+        assertEquals(8, slot.getBuffer().remaining());
+        assertEquals(value, slot.getBuffer().getInt(0));
+        assertEquals(~value, slot.getBuffer().getInt(4));
+    }
+
+}